@@ -21,24 +21,40 @@
  */
 package com.zwitserloot.ivyplusplus;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.BiPredicate;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.Delete;
-import org.apache.tools.ant.taskdefs.Expand;
 import org.apache.tools.ant.taskdefs.MatchingTask;
 import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.ant.types.Path;
@@ -46,11 +62,22 @@ import org.apache.tools.ant.types.Resource;
 import org.apache.tools.ant.types.resources.FileResource;
 
 public class CachedUnjar extends MatchingTask {
+	/** Not a character any text marker file, as written by older versions, can start with. */
+	private static final int MARKER_MAGIC = 0x89495055;
+	private static final int MARKER_VERSION = 4;
+	private static final String DEST_MODE = "dest";
+	private static final String DESTJAR_MODE = "destjar duplicate=";
+	
 	private File dest;
+	private File destjar;
+	private String duplicate = "overwrite";
 	private File source;
 	private File marker;
 	private List<FileSet> fileSets = new ArrayList<FileSet>();
 	private List<Path> paths = new ArrayList<Path>();
+	private int threads;
+	private boolean digest;
+	private File store;
 	
 	public void addFileset(FileSet set) {
 		this.fileSets.add(set);
@@ -72,31 +99,71 @@ public class CachedUnjar extends MatchingTask {
 		this.dest = file;
 	}
 	
+	public void setDestjar(File destjar) {
+		this.destjar = destjar;
+	}
+	
+	public void setDuplicate(String duplicate) {
+		this.duplicate = duplicate;
+	}
+	
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	public void setDigest(boolean digest) {
+		this.digest = digest;
+	}
+	
+	public void setStore(File store) {
+		this.store = store;
+	}
+	
 	public void execute() throws BuildException {
 		if (source == null && fileSets.isEmpty() && paths.isEmpty()) {
 			throw new BuildException("Specify either 'source' or include a fileset or path.", getLocation());
 		}
 		
 		if (marker == null) throw new BuildException("Specify 'marker' which is a file that carries caching info.", getLocation());
-		if (dest == null) throw new BuildException("Specify 'dest' which is the directory the jars are unpacked to.", getLocation());
+		if (dest == null && destjar == null) throw new BuildException("Specify 'dest' which is the directory the jars are unpacked to.", getLocation());
+		if (dest != null && destjar != null) throw new BuildException("Specify either 'dest' or 'destjar', not both.", getLocation());
+		
+		JarMerger.Duplicate dup;
+		try {
+			dup = JarMerger.Duplicate.valueOf(duplicate.toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			throw new BuildException("'duplicate' must be one of 'overwrite', 'preserve' or 'fail': " + duplicate, getLocation());
+		}
 		
-		if (!dest.exists()) if (!dest.mkdirs()) throw new BuildException("'dest' does not exist and cannot be created as directory: " + dest, getLocation());
-		if (!dest.isDirectory()) throw new BuildException("'dest' must be a directory: " + dest, getLocation());
+		if (destjar != null) {
+			if (store != null) throw new BuildException("'store' only applies to 'dest', not to 'destjar'.", getLocation());
+		} else if (!dest.exists()) if (!dest.mkdirs()) throw new BuildException("'dest' does not exist and cannot be created as directory: " + dest, getLocation());
+		if (dest != null && !dest.isDirectory()) throw new BuildException("'dest' must be a directory: " + dest, getLocation());
 		
 		if (source != null && (!fileSets.isEmpty() || !paths.isEmpty())) {
 			throw new BuildException("Specify either 'source' or include filesets/paths, not both.", getLocation());
 		}
 		
-		Set<CacheRecord> caches;
+		// The store is keyed on the digest, so it is needed either way.
+		boolean digest = this.digest || store != null;
+		
+		Markers markers;
 		try {
-			caches = readCaches(marker);
+			markers = readCaches(marker);
 		} catch (IOException e) {
 			throw new BuildException("Can't read marker file", e, getLocation());
 		}
+		Map<String, CacheRecord> caches = markers.records;
+		
+		FileSet patterns = getImplicitFileSet();
+		EntryFilter filter = new EntryFilter(patterns.mergeIncludes(getProject()), patterns.mergeExcludes(getProject()), patterns.isCaseSensitive());
+		String filterKey = filter.key();
+		boolean sameFilter = filterKey.equals(markers.filter);
+		if (filter.isEmpty()) filter = null;
 		
-		Set<CacheRecord> newCache = new LinkedHashSet<CacheRecord>();
-		Set<CacheRecord> toUnpack = new LinkedHashSet<CacheRecord>();
-		List<File> toUnpackRes = new ArrayList<File>();
+		List<CacheRecord> newCache = new ArrayList<CacheRecord>();
+		final Map<File, CacheRecord> recordOf = new HashMap<File, CacheRecord>();
+		final Set<String> upToDateJars = new HashSet<String>();
 		List<File> allRes = new ArrayList<File>();
 		
 		if (source != null) {
@@ -120,36 +187,129 @@ public class CachedUnjar extends MatchingTask {
 						throw new BuildException("Only file resources supported: " + res.getName(), getLocation());
 					}
 					File jarFile = ((FileResource)res).getFile();
-					allRes.add(jarFile);
-					CacheRecord cr = new CacheRecord(jarFile.getCanonicalPath(), res.getLastModified(), res.getSize());
-					if (caches.contains(cr)) {
+					CacheRecord cr = new CacheRecord(jarFile.getCanonicalPath(), res.getLastModified(), res.getSize(), null);
+					CacheRecord old = caches.get(cr.name);
+					boolean upToDate = old != null && old.lastMod == cr.lastMod && old.len == cr.len;
+					if (digest) {
+						// A re-retrieved jar has a new timestamp but the same content; the digest tells them apart without unpacking anything.
+						if (upToDate && old.digest != null) cr.digest = old.digest;
+						else cr.digest = digest(jarFile);
+						if (!upToDate && old != null && old.len == cr.len && cr.digest.equals(old.digest)) upToDate = true;
+					}
+					if (upToDate) {
 						this.log(String.format("Skipping %s due to cache", jarFile.getCanonicalPath()), Project.MSG_VERBOSE);
-						newCache.add(cr);
-					} else {
-						newCache.add(cr);
-						toUnpack.add(cr);
-						toUnpackRes.add(jarFile);
+						upToDateJars.add(cr.name);
 					}
+					allRes.add(jarFile);
+					newCache.add(cr);
+					recordOf.put(jarFile, cr);
 				}
 			}
-			
-			if (newCache.size() - toUnpack.size() == caches.size()) {
-				// We just need to unpack toUnpack.
-				unpack(toUnpackRes);
+		} catch (IOException e) {
+			throw new BuildException(e, getLocation());
+		}
+		
+		List<String> oldOrder = new ArrayList<String>(caches.keySet());
+		List<String> newOrder = new ArrayList<String>();
+		for (CacheRecord cr : newCache) newOrder.add(cr.name);
+		boolean unchanged = oldOrder.equals(newOrder) && upToDateJars.size() == newOrder.size();
+		
+		if (destjar != null) {
+			String mode = DESTJAR_MODE + dup.name().toLowerCase(Locale.ROOT);
+			if (unchanged && sameFilter && mode.equals(markers.mode) && destjar.isFile()) {
+				this.log(String.format("%s is up to date", destjar), Project.MSG_VERBOSE);
 			} else {
-				// At least one unpack library is no longer in the set, so we delete and unpack all.
-				this.log(String.format("Deleting %s because previously present jar is no longer there.", dest), Project.MSG_INFO);
+				this.log(String.format("Merging %d jars into %s", allRes.size(), destjar), Project.MSG_INFO);
+				try {
+					new JarMerger(this, dup, filter).merge(allRes, destjar);
+				} catch (IOException e) {
+					throw new BuildException("Can't write " + destjar + ": " + e, e, getLocation());
+				}
+			}
+			saveCache(mode, filterKey, newCache, Collections.<String>emptySet());
+			return;
+		}
+		
+		if (dup != JarMerger.Duplicate.OVERWRITE) throw new BuildException("'duplicate' only applies to 'destjar'.", getLocation());
+		
+		boolean hasOwners = DEST_MODE.equals(markers.mode);
+		if (hasOwners && unchanged && sameFilter && markers.pending.isEmpty()) {
+			// Same jars in the same order, none of them changed, same patterns: nothing to do.
+			for (CacheRecord cr : newCache) cr.owned = caches.get(cr.name).owned;
+		} else {
+			if (markers.unreadable || (!hasOwners && !caches.isEmpty())) {
+				// Written by an older version that didn't track which jar wrote which file (or not readable at all), so we can't tell what's stale.
+				this.log(String.format("Deleting %s because the marker file doesn't say which jar unpacked which file.", dest), Project.MSG_INFO);
 				clearDest();
-				unpack(allRes);
+				upToDateJars.clear();
+				caches.clear();
 			}
-		} catch (IOException e) {
-			throw new BuildException(e, getLocation());
+			
+			final Map<String, String> oldOwners = new HashMap<String, String>();
+			for (CacheRecord cr : caches.values()) for (String name : cr.owned) oldOwners.put(name, cr.name);
+			// Files an interrupted run may have been writing (or deleting); whichever jar wins them now unpacks them again, and the rest are deleted.
+			final Set<String> suspect = markers.pending;
+			if (!suspect.isEmpty()) this.log(String.format("The last run was interrupted; restoring %d files in %s", suspect.size(), dest), Project.MSG_INFO);
+			for (String name : suspect) if (!oldOwners.containsKey(name)) oldOwners.put(name, "");
+			final Collection<CacheRecord> oldRecords = caches.values();
+			final String oldFilter = markers.filter == null ? "" : markers.filter;
+			
+			// With other patterns, files that are in or out now are simply written or deleted as if the jars had changed; the rest stays.
+			JarExtractor extractor = new JarExtractor(this, dest, threads).filter(filter);
+			if (store != null) {
+				Map<File, File> unpacked = new HashMap<File, File>();
+				ExtractionStore es = new ExtractionStore(this, store, threads);
+				try {
+					for (File jar : allRes) unpacked.put(jar, es.unpacked(jar, recordOf.get(jar).digest));
+				} catch (IOException e) {
+					throw new BuildException("Can't unpack into store " + store + ": " + e, e, getLocation());
+				}
+				extractor.linkFrom(unpacked);
+			}
+			
+			// A file is left alone only if the jar that wins it now is the one that wrote it, and that jar didn't change.
+			Map<File, List<String>> owned = extractor.extract(allRes, new BiPredicate<File, String>() {
+				@Override public boolean test(File jar, String name) {
+					String jarName = recordOf.get(jar).name;
+					return upToDateJars.contains(jarName) && jarName.equals(oldOwners.get(name)) && !suspect.contains(name) && new File(dest, name).isFile();
+				}
+			}, new JarExtractor.Plan() {
+				@Override public void ready(Map<File, List<String>> owned, List<String> writing) {
+					// Until this run finishes, the old marker plus the list of files about to change is all the next run can trust.
+					Set<String> pending = new HashSet<String>(writing);
+					Set<String> stale = new HashSet<String>(oldOwners.keySet());
+					for (List<String> names : owned.values()) stale.removeAll(names);
+					pending.addAll(stale);
+					if (!pending.isEmpty()) saveCache(DEST_MODE, oldFilter, oldRecords, pending);
+					
+					// Deleted before anything is unpacked, so that removing directories that end up empty can't take along one that is about to be created.
+					int removed = 0;
+					for (String name : stale) {
+						// No jar provides this file anymore; take along any directories that are now empty.
+						File f = new File(dest, name);
+						if (!f.delete()) continue;
+						removed++;
+						for (File dir = f.getParentFile(); !dir.equals(dest) && dir.delete(); dir = dir.getParentFile());
+					}
+					if (removed > 0) log(String.format("Deleted %d files from %s that are no longer in any jar", removed, dest), Project.MSG_VERBOSE);
+				}
+			});
+			for (Map.Entry<File, List<String>> e : owned.entrySet()) recordOf.get(e.getKey()).owned = e.getValue();
 		}
 		
-		try {
-			saveCache(newCache);
-		} catch (IOException e) {
-			throw new BuildException("Can't write marker file", e, getLocation());
+		saveCache(DEST_MODE, filterKey, newCache, Collections.<String>emptySet());
+	}
+	
+	private static String digest(File jar) throws IOException {
+		try (InputStream in = new FileInputStream(jar)) {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] buffer = new byte[65536];
+			for (int r = in.read(buffer); r != -1; r = in.read(buffer)) md.update(buffer, 0, r);
+			StringBuilder sb = new StringBuilder();
+			for (byte b : md.digest()) sb.append(String.format("%02x", b & 0xFF));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new InternalError("SHA-1 not available");
 		}
 	}
 	
@@ -159,85 +319,153 @@ public class CachedUnjar extends MatchingTask {
 		d.execute();
 	}
 	
-	private void unpack(Collection<File> ress) {
-		for (File res : ress) {
-			Expand ex = new Expand();
-			ex.setDest(dest);
-			ex.setSrc(res);
-			ex.setTaskName("cachingunjar");
-			ex.setTaskType("unjar");
-			ex.execute();
+	/**
+	 * Writes the marker file under a temporary name, then renames it into place, so that it is never seen half written.
+	 */
+	private void saveCache(String mode, String filter, Collection<CacheRecord> crs, Set<String> pending) {
+		File tmp = new File(marker.getAbsoluteFile().getParentFile(), marker.getName() + ".tmp");
+		try {
+			try (FileOutputStream fos = new FileOutputStream(tmp)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeInt(MARKER_MAGIC);
+				out.writeInt(MARKER_VERSION);
+				out.writeUTF(mode);
+				out.writeUTF(filter);
+				writeNames(out, new ArrayList<String>(pending));
+				out.writeInt(crs.size());
+				for (CacheRecord cr : crs) cr.write(out);
+				out.flush();
+				fos.getFD().sync();
+			}
+			try {
+				Files.move(tmp.toPath(), marker.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), marker.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw new BuildException("Can't write marker file", e, getLocation());
 		}
 	}
 	
-	private void saveCache(Collection<CacheRecord> crs) throws IOException {
-		FileOutputStream fos = new FileOutputStream(marker);
-		try {
-			for (CacheRecord cr : crs) fos.write(cr.write().getBytes("UTF-8"));
-		} finally {
-			fos.close();
-		}
-	}
-	
-	private static Set<CacheRecord> readCaches(File marker) throws IOException {
-		Set<CacheRecord> out = new LinkedHashSet<CacheRecord>();
-		try (
-			FileInputStream fis = new FileInputStream(marker);
-			BufferedReader br = new BufferedReader(new InputStreamReader(fis, "UTF-8"))
-		) {
-			for (String line = br.readLine(); line != null; line = br.readLine()) {
-				line = line.trim();
-				if (line.startsWith("#")) continue;
-				if (line.length() == 0) continue;
-				out.add(CacheRecord.read(line));
+	private static final class Markers {
+		final Map<String, CacheRecord> records = new LinkedHashMap<String, CacheRecord>();
+		/** Whether the marker is for 'dest' or 'destjar' (and with which duplicate policy); {@code null} for markers written by older versions. */
+		String mode;
+		/** The include and exclude patterns the files were unpacked with. */
+		String filter;
+		/** The files a run was busy with when it was interrupted. */
+		Set<String> pending = new HashSet<String>();
+		/** Set if the marker is truncated, or written by a newer version. */
+		boolean unreadable;
+	}
+	
+	private static Markers readCaches(File marker) throws IOException {
+		Markers out = new Markers();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(marker)))) {
+			in.mark(4);
+			if (in.available() < 4 || in.readInt() != MARKER_MAGIC) {
+				in.reset();
+				readTextCaches(in, out);
+				return out;
+			}
+			if (in.readInt() != MARKER_VERSION) {
+				out.unreadable = true;
+				return out;
+			}
+			out.mode = in.readUTF();
+			out.filter = in.readUTF();
+			out.pending.addAll(readNames(in));
+			for (int i = in.readInt(); i > 0; i--) {
+				CacheRecord cr = CacheRecord.read(in);
+				out.records.put(cr.name, cr);
 			}
-		} catch (FileNotFoundException e) {}
+		} catch (FileNotFoundException e) {
+		} catch (EOFException e) {
+			// Can't happen with the atomic rename, but if it does: trust nothing that was in it.
+			Markers broken = new Markers();
+			broken.unreadable = true;
+			return broken;
+		}
 		return out;
 	}
 	
+	/**
+	 * Markers written by older versions: a {@code name ::: lastMod ::: len} line per jar. These don't say which jar unpacked which file.
+	 */
+	private static void readTextCaches(InputStream in, Markers out) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		for (String line = br.readLine(); line != null; line = br.readLine()) {
+			line = line.trim();
+			if (line.startsWith("#")) continue;
+			if (line.length() == 0) continue;
+			String[] elems = line.split(" ::: ", 4);
+			CacheRecord cr = new CacheRecord(elems[0], Long.parseLong(elems[1]), Long.parseLong(elems[2]), null);
+			out.records.put(cr.name, cr);
+		}
+	}
+	
+	/**
+	 * Writes a list of names, each as the length of the prefix it shares with the one before it plus the rest. Names from the same jar mostly
+	 * share long package prefixes, which keeps the marker small.
+	 */
+	private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+		out.writeInt(names.size());
+		String prev = "";
+		for (String name : names) {
+			int common = 0, max = Math.min(Math.min(prev.length(), name.length()), 0xFFFF);
+			while (common < max && prev.charAt(common) == name.charAt(common)) common++;
+			out.writeShort(common);
+			out.writeUTF(name.substring(common));
+			prev = name;
+		}
+	}
+	
+	private static List<String> readNames(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		List<String> names = new ArrayList<String>(size);
+		String prev = "";
+		for (int i = 0; i < size; i++) {
+			int common = in.readUnsignedShort();
+			prev = prev.substring(0, common) + in.readUTF();
+			names.add(prev);
+		}
+		return names;
+	}
+	
 	private static class CacheRecord {
 		private final String name;
 		private final long lastMod, len;
+		private String digest;
+		private List<String> owned = new ArrayList<String>();
 		
-		public CacheRecord(String name, long lastMod, long len) {
+		public CacheRecord(String name, long lastMod, long len, String digest) {
 			this.name = name;
 			this.lastMod = lastMod;
 			this.len = len;
+			this.digest = digest;
 		}
 		
 		@Override public String toString() {
-			return name + "[lastMod = " + lastMod + ", len = " + len + "]";
-		}
-		
-		@Override public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + (int) (lastMod ^ (lastMod >>> 32));
-			result = prime * result + (int) (len ^ (len >>> 32));
-			result = prime * result + ((name == null) ? 0 : name.hashCode());
-			return result;
-		}
-		
-		@Override public boolean equals(Object obj) {
-			if (this == obj) return true;
-			if (obj == null) return false;
-			if (getClass() != obj.getClass()) return false;
-			CacheRecord other = (CacheRecord) obj;
-			if (lastMod != other.lastMod) return false;
-			if (len != other.len) return false;
-			if (name == null) {
-				if (other.name != null) return false;
-			} else if (!name.equals(other.name)) return false;
-			return true;
+			return name + "[lastMod = " + lastMod + ", len = " + len + (digest == null ? "" : ", digest = " + digest) + "]";
 		}
 		
-		static CacheRecord read(String line) {
-			String[] elems = line.split(" ::: ", 3);
-			return new CacheRecord(elems[0], Long.parseLong(elems[1]), Long.parseLong(elems[2]));
+		static CacheRecord read(DataInputStream in) throws IOException {
+			String name = in.readUTF();
+			long lastMod = in.readLong();
+			long len = in.readLong();
+			String digest = in.readUTF();
+			CacheRecord cr = new CacheRecord(name, lastMod, len, digest.isEmpty() ? null : digest);
+			cr.owned = readNames(in);
+			return cr;
 		}
 		
-		String write() {
-			return String.format("%s ::: %d ::: %d\n", name, lastMod, len);
+		void write(DataOutputStream out) throws IOException {
+			out.writeUTF(name);
+			out.writeLong(lastMod);
+			out.writeLong(len);
+			out.writeUTF(digest == null ? "" : digest);
+			writeNames(out, owned);
 		}
 	}
 }
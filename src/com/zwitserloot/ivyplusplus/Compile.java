@@ -24,13 +24,20 @@ package com.zwitserloot.ivyplusplus;
 import static java.util.Collections.unmodifiableMap;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DynamicAttribute;
@@ -45,7 +52,12 @@ import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.ant.types.Path;
 import org.apache.tools.ant.util.facade.ImplementationSpecificArgument;
 
+import com.zwitserloot.ivyplusplus.ecj.ClasspathIndex;
 import com.zwitserloot.ivyplusplus.ecj.EcjAdapter;
+import com.zwitserloot.ivyplusplus.ecj.EcjCompileService;
+import com.zwitserloot.ivyplusplus.ecj.IncrementalState;
+import com.zwitserloot.ivyplusplus.ecj.JarClassOutput;
+import com.zwitserloot.ivyplusplus.ecj.ProblemReport;
 
 public class Compile extends MatchingTask implements DynamicAttribute {
 	private UnknownElement javac, copy, mkdir;
@@ -53,6 +65,18 @@ public class Compile extends MatchingTask implements DynamicAttribute {
 	private boolean doCopy = true;
 	private boolean ecj;
 	private boolean includeSystemBootclasspath;
+	private boolean compileService;
+	private int compileServiceSize;
+	private boolean incremental;
+	private int threads;
+	private boolean parallel;
+	private boolean timings;
+	private boolean skipIdenticalClassFiles;
+	private File destjar;
+	private boolean classpathIndex;
+	private File classpathIndexDir;
+	private File problemReport;
+	private ProblemReport report;
 	private String copyExcludes;
 	private String destdirLoc;
 	
@@ -64,6 +88,50 @@ public class Compile extends MatchingTask implements DynamicAttribute {
 		this.ecj = ecj;
 	}
 	
+	public void setCompileService(boolean compileService) {
+		this.compileService = compileService;
+	}
+	
+	public void setCompileServiceSize(int compileServiceSize) {
+		this.compileServiceSize = compileServiceSize;
+	}
+	
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+	
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+	
+	public void setTimings(boolean timings) {
+		this.timings = timings;
+	}
+	
+	public void setSkipIdenticalClassFiles(boolean skipIdenticalClassFiles) {
+		this.skipIdenticalClassFiles = skipIdenticalClassFiles;
+	}
+	
+	public void setDestjar(File destjar) {
+		this.destjar = destjar;
+	}
+	
+	public void setClasspathIndex(boolean classpathIndex) {
+		this.classpathIndex = classpathIndex;
+	}
+	
+	public void setClasspathIndexDir(File classpathIndexDir) {
+		this.classpathIndexDir = classpathIndexDir;
+	}
+	
+	public void setProblemReport(File problemReport) {
+		this.problemReport = problemReport;
+	}
+	
 	public void setCopyExcludes(String copyExcludes) {
 		this.copyExcludes = copyExcludes;
 	}
@@ -210,6 +278,14 @@ public class Compile extends MatchingTask implements DynamicAttribute {
 		return arg;
 	}
 	
+	private List<CompileGroup> groups = new ArrayList<CompileGroup>();
+	
+	public CompileGroup createGroup() {
+		CompileGroup group = new CompileGroup(getProject());
+		groups.add(group);
+		return group;
+	}
+	
 	public AnnotationProcessorEntry createAnnotationProcessor() {
 		AnnotationProcessorEntry entry = new AnnotationProcessorEntry();
 		annotationProcessorEntries.add(entry);
@@ -217,8 +293,6 @@ public class Compile extends MatchingTask implements DynamicAttribute {
 	}
 	
 	public void execute() {
-		if (destdirLoc == null) throw new BuildException("mandatory property 'destdir' not set.");
-		log(getLocation().toString() + "compiling to " + destdirLoc, Project.MSG_VERBOSE);
 		if (src == null) src = new Path(getProject());
 		Map<?, ?> attributeMap = javac.getWrapper().getAttributeMap();
 		boolean hasRelease = attributeMap.containsKey("release");
@@ -232,12 +306,103 @@ public class Compile extends MatchingTask implements DynamicAttribute {
 			if (!attributeMap.containsKey(e.getKey())) copy.getWrapper().setAttribute(e.getKey(), e.getValue());
 		}
 		
+		report = problemReport == null ? null : new ProblemReport();
+		boolean success = false;
+		try {
+			compileAll();
+			success = true;
+		} finally {
+			if (report != null) writeProblemReport(success);
+		}
+	}
+	
+	private void writeProblemReport(boolean success) {
+		try {
+			report.writeTo(problemReport);
+		} catch (IOException e) {
+			// Don't let this hide the reason the compile failed.
+			if (success) throw new BuildException("Can't write problem report " + problemReport, e, getLocation());
+			log("Can't write problem report " + problemReport + ": " + e, Project.MSG_ERR);
+		}
+	}
+	
+	private void compileAll() {
+		if (destjar != null) {
+			if (destdirLoc != null) throw new BuildException("'destdir' and 'destjar' are mutually exclusive.", getLocation());
+			if (!groups.isEmpty()) throw new BuildException("'destjar' cannot be combined with nested <group> elements.", getLocation());
+			if (incremental) throw new BuildException("'destjar' cannot be combined with incremental=\"true\".", getLocation());
+			if (skipIdenticalClassFiles) throw new BuildException("'destjar' cannot be combined with skipIdenticalClassFiles=\"true\".", getLocation());
+			log(getLocation().toString() + "compiling to " + destjar, Project.MSG_VERBOSE);
+			prepare(mkdir, javac, copy, src).run();
+			return;
+		}
+		
+		if (groups.isEmpty()) {
+			if (destdirLoc == null) throw new BuildException("mandatory property 'destdir' not set.");
+			log(getLocation().toString() + "compiling to " + destdirLoc, Project.MSG_VERBOSE);
+			prepare(mkdir, javac, copy, src).run();
+			return;
+		}
+		
+		if (destdirLoc != null) throw new BuildException("'destdir' cannot be combined with nested <group> elements; set it on each group instead.", getLocation());
+		if (src.size() > 0) throw new BuildException("'srcdir' cannot be combined with nested <group> elements; set it on each group instead.", getLocation());
+		
+		// Configuring ant tasks isn't thread safe, so all groups are set up here; only the actual mkdir/compile/copy runs in the pool.
+		List<Runnable> jobs = new ArrayList<Runnable>();
+		for (CompileGroup group : groups) {
+			if (group.getDestdir() == null) throw new BuildException("mandatory property 'destdir' not set on <group>.", getLocation());
+			if (group.getSrc() == null) throw new BuildException("mandatory property 'srcdir' not set on <group>.", getLocation());
+			log(getLocation().toString() + "compiling group to " + group.getDestdir(), Project.MSG_VERBOSE);
+			jobs.add(prepare(copyOf(mkdir, MKDIR_ATTR_MAP, group.getDestdir()), copyOf(javac, JAVAC_ATTR_MAP, group.getDestdir()), copyOf(copy, COPY_ATTR_MAP, group.getDestdir()), group.getSrc()));
+		}
+		
+		int poolSize = Math.min(jobs.size(), threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+		ForkJoinPool pool = new ForkJoinPool(poolSize);
+		try {
+			List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+			for (Runnable job : jobs) tasks.add(pool.submit(job));
+			RuntimeException failure = null;
+			for (ForkJoinTask<?> task : tasks) {
+				// Wait for all groups, even if one fails, so that no compile is still writing to disk when the build moves on.
+				try {
+					task.join();
+				} catch (RuntimeException e) {
+					if (failure == null) failure = e;
+				}
+			}
+			if (failure instanceof BuildException) throw failure;
+			if (failure != null) throw new BuildException(failure, getLocation());
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private UnknownElement copyOf(UnknownElement template, Map<String, String> attrMap, String destdir) {
+		UnknownElement elem = new UnknownElement(template.getTag());
+		elem.setTaskName(template.getTaskName());
+		new RuntimeConfigurable(elem, elem.getTaskName());
+		elem.setProject(getProject());
+		for (Map.Entry<String, Object> e : template.getWrapper().getAttributeMap().entrySet()) {
+			elem.getWrapper().setAttribute(e.getKey(), String.valueOf(e.getValue()));
+		}
+		setWithKey(elem, attrMap, "destdir", destdir);
+		return elem;
+	}
+	
+	private String javacAttribute(UnknownElement javac, String name) {
+		Object value = javac.getWrapper().getAttributeMap().get(name);
+		return value == null ? null : getProject().replaceProperties(String.valueOf(value));
+	}
+	
+	/**
+	 * Configures the mkdir, compile and copy steps for the given source roots, and returns a job that runs them.
+	 */
+	private Runnable prepare(UnknownElement mkdir, UnknownElement javac, UnknownElement copy, final Path src) {
 		mkdir.maybeConfigure();
-		Mkdir mkdirTask = (Mkdir) mkdir.getRealThing();
-		mkdirTask.execute();
+		final Mkdir mkdirTask = (Mkdir) mkdir.getRealThing();
 		
 		javac.maybeConfigure();
-		Javac javacTask = (Javac) javac.getRealThing();
+		final Javac javacTask = (Javac) javac.getRealThing();
 		javacTask.setSrcdir(src);
 		javacTask.createCompilerArg().setValue("-Xlint:unchecked");
 		for (ImplementationSpecificArgument isa : compilerArgs) javacTask.createCompilerArg().copyFrom(isa);
@@ -278,29 +443,193 @@ public class Compile extends MatchingTask implements DynamicAttribute {
 		} catch (Exception e) {
 			throw new BuildException(e, getLocation());
 		}
+		
+		final JarClassOutput jarOutput = destjar == null ? null : new JarClassOutput();
+		final Runnable compile;
 		if (ecj) {
 			if (!compilerArgs.isEmpty()) throw new BuildException("compilerArg is not supported for ecj=\"true\"");
-			EcjAdapter ecjAdapter = new EcjAdapter();
+			// Without the incremental state, a source whose class file was left untouched stays newer than it, and javac's timestamp check picks it again every time.
+			if (skipIdenticalClassFiles && !incremental) throw new BuildException("skipIdenticalClassFiles only supported in combination with incremental=\"true\"", getLocation());
+			final EcjAdapter ecjAdapter = new EcjAdapter();
 			ecjAdapter.setAnnotationProcessorEntries(procClasses, procJars);
 			if (includeSystemBootclasspath) ecjAdapter.setIncludeSystemBootclasspath(true);
-			javacTask.add(ecjAdapter);
+			ecjAdapter.setParallel(parallel);
+			ecjAdapter.setReportTimings(timings);
+			ecjAdapter.setSkipIdenticalClassFiles(skipIdenticalClassFiles);
+			if (jarOutput != null) ecjAdapter.setClassOutput(jarOutput);
+			if (report != null) ecjAdapter.setProblemReport(report);
+			if (classpathIndex || classpathIndexDir != null) ecjAdapter.setClasspathIndex(new ClasspathIndex(classpathIndexDir == null ? ClasspathIndex.defaultDirectory() : classpathIndexDir));
+			if (compileService) {
+				EcjCompileService service = EcjCompileService.get(getProject());
+				if (compileServiceSize > 0) service.setMaxEntries(compileServiceSize);
+				ecjAdapter.setCompileService(service);
+			}
+			if (incremental) {
+				// javac's own selection is purely timestamp based and can't see deleted sources; the adapter needs to see all of them.
+				List<File> sources = new ArrayList<File>();
+				for (String pathElem : src.list()) {
+					File srcPath = getProject().resolveFile(pathElem);
+					if (!srcPath.isDirectory()) throw new BuildException("srcdir \"" + srcPath + "\" does not exist!", getLocation());
+					for (String name : getDirectoryScanner(srcPath).getIncludedFiles()) {
+						if (name.endsWith(".java")) sources.add(new File(srcPath, name));
+					}
+				}
+				ecjAdapter.setIncrementalSources(sources.toArray(new File[0]));
+				ecjAdapter.setJavac(javacTask);
+				// What javac.execute() would otherwise do with these; javac has no getters for the two properties.
+				final String updatedProperty = javacAttribute(javac, "updatedproperty");
+				final String errorProperty = javacAttribute(javac, "errorproperty");
+				compile = new Runnable() {
+					@Override public void run() {
+						try {
+							ecjAdapter.execute();
+							if (updatedProperty != null && ecjAdapter.getCompiledCount() > 0) getProject().setNewProperty(updatedProperty, "true");
+						} catch (BuildException e) {
+							if (errorProperty != null) getProject().setNewProperty(errorProperty, "true");
+							if (javacTask.getFailonerror()) throw e;
+							log(e.getMessage(), Project.MSG_ERR);
+						}
+					}
+				};
+			} else {
+				javacTask.add(ecjAdapter);
+				compile = null;
+			}
 		} else {
 			if (includeSystemBootclasspath) throw new BuildException("includeSystemBootclasspath only supported in combination with ecj=\"true\"");
+			if (compileService) throw new BuildException("compileService only supported in combination with ecj=\"true\"");
+			if (incremental) throw new BuildException("incremental only supported in combination with ecj=\"true\"");
+			if (parallel) throw new BuildException("parallel only supported in combination with ecj=\"true\"");
+			if (timings) throw new BuildException("timings only supported in combination with ecj=\"true\"");
+			if (skipIdenticalClassFiles) throw new BuildException("skipIdenticalClassFiles only supported in combination with ecj=\"true\"");
+			if (destjar != null) throw new BuildException("destjar only supported in combination with ecj=\"true\"");
+			if (classpathIndex || classpathIndexDir != null) throw new BuildException("classpathIndex only supported in combination with ecj=\"true\"");
+			if (problemReport != null) throw new BuildException("problemReport only supported in combination with ecj=\"true\"");
+			compile = null;
 		}
-		javacTask.execute();
 		
+		final List<FileSet> resources = new ArrayList<FileSet>();
 		if (doCopy) {
-			copy.maybeConfigure();
-			Copy copyTask = (Copy) copy.getRealThing();
 			for (String pathElem : src.list()) {
 				File srcPath = getProject().resolveFile(pathElem);
 				FileSet fs = (FileSet) getImplicitFileSet().clone();
 				fs.setDir(srcPath);
 				fs.createExclude().setName("**/*.java");
 				if (copyExcludes != null) fs.createExclude().setName(copyExcludes);
-				copyTask.addFileset(fs);
+				resources.add(fs);
+			}
+		}
+		
+		final Copy copyTask;
+		if (doCopy && destjar == null) {
+			copy.maybeConfigure();
+			copyTask = (Copy) copy.getRealThing();
+			for (FileSet fs : resources) copyTask.addFileset(fs);
+		} else {
+			copyTask = null;
+		}
+		
+		final UnknownElement javacElem = javac;
+		final Set<File> jarProcJars = procJars;
+		final ClassLoader contextLoader = Thread.currentThread().getContextClassLoader();
+		return new Runnable() {
+			@Override public void run() {
+				Thread thread = Thread.currentThread();
+				ClassLoader old = thread.getContextClassLoader();
+				thread.setContextClassLoader(contextLoader);
+				try {
+					if (jarOutput == null) {
+						mkdirTask.execute();
+						if (compile == null) javacTask.execute();
+						else compile.run();
+						if (copyTask != null) copyTask.execute();
+					} else {
+						compileToJar(javacElem, javacTask, jarOutput, resources, jarProcJars);
+					}
+				} finally {
+					thread.setContextClassLoader(old);
+				}
 			}
-			copyTask.execute();
+		};
+	}
+	
+	/**
+	 * Compiles into a scratch directory that only ends up holding what annotation processors generate; class files go straight into
+	 * {@code jarOutput}, which is then topped off with the resources and written to {@code destjar}.
+	 * 
+	 * There are no class files on disk to compare timestamps with, so instead a key over everything the jar is built from is stored next to it;
+	 * if that still matches, nothing is compiled at all.
+	 */
+	private void compileToJar(UnknownElement javac, Javac javacTask, JarClassOutput jarOutput, List<FileSet> resources, Set<File> procJars) {
+		File keyFile = new File(destjar.getAbsoluteFile().getParentFile(), destjar.getName() + ".ecjstate");
+		String key = jarKey(javac, javacTask, procJars);
+		if (destjar.isFile() && key.equals(readKey(keyFile))) {
+			log(destjar + " is up to date", Project.MSG_VERBOSE);
+			return;
+		}
+		keyFile.delete();
+		
+		File scratch;
+		try {
+			scratch = Files.createTempDirectory("ipp-compile").toFile();
+		} catch (IOException e) {
+			throw new BuildException("Can't create scratch directory for compiling to " + destjar, e, getLocation());
 		}
+		try {
+			javacTask.setDestdir(scratch);
+			javacTask.execute();
+			for (FileSet fs : resources) {
+				File dir = fs.getDir(getProject());
+				for (String name : fs.getDirectoryScanner(getProject()).getIncludedFiles()) jarOutput.addFile(name, new File(dir, name));
+			}
+			jarOutput.addDirectory(scratch);
+			log("Building jar: " + destjar + " (" + jarOutput.size() + " entries)");
+			jarOutput.writeTo(destjar);
+		} catch (IOException e) {
+			throw new BuildException("Can't write " + destjar, e, getLocation());
+		} finally {
+			deleteRecursively(scratch);
+		}
+		
+		if (!javacTask.getTaskSuccess()) return;
+		try {
+			Files.write(keyFile.toPath(), (key + "\n").getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			log("Can't write " + keyFile + "; " + destjar + " will be rebuilt next time: " + e.getMessage(), Project.MSG_WARN);
+		}
+	}
+	
+	/**
+	 * Covers the compiler settings, the source roots (every file in them, so that removed files count as well), the classpath, and the annotation processors.
+	 */
+	private String jarKey(UnknownElement javac, Javac javacTask, Set<File> procJars) {
+		List<String> settings = new ArrayList<String>();
+		for (Map.Entry<String, Object> e : new TreeMap<String, Object>(javac.getWrapper().getAttributeMap()).entrySet()) {
+			settings.add(e.getKey() + "=" + getProject().replaceProperties(String.valueOf(e.getValue())));
+		}
+		settings.add("args=" + Arrays.toString(javacTask.getCurrentCompilerArgs()));
+		settings.add("patterns=" + getImplicitFileSet().mergePatterns(getProject()));
+		settings.add("copy=" + doCopy + "; copyExcludes=" + copyExcludes + "; includeSystemBootclasspath=" + includeSystemBootclasspath);
+		settings.add("java.home=" + System.getProperty("java.home") + "; java.version=" + System.getProperty("java.version"));
+		List<File> inputs = new ArrayList<File>();
+		for (String pathElem : javacTask.getSrcdir().list()) inputs.add(getProject().resolveFile(pathElem));
+		if (javacTask.getBootclasspath() != null) for (String entry : javacTask.getBootclasspath().list()) inputs.add(new File(entry));
+		if (javacTask.getClasspath() != null) for (String entry : javacTask.getClasspath().list()) inputs.add(new File(entry));
+		inputs.addAll(procJars);
+		return IncrementalState.computeKey(settings, inputs);
+	}
+	
+	private static String readKey(File keyFile) {
+		try {
+			return new String(Files.readAllBytes(keyFile.toPath()), StandardCharsets.UTF_8).trim();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	private static void deleteRecursively(File f) {
+		File[] children = f.listFiles();
+		if (children != null) for (File child : children) deleteRecursively(child);
+		f.delete();
 	}
 }
@@ -0,0 +1,39 @@
+package com.zwitserloot.ivyplusplus;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.Path;
+
+/**
+ * A set of source roots with its own destination directory, compiled independently of (and concurrently with) the other groups of an {@code <ivy:compile>}.
+ */
+public class CompileGroup {
+	private final Project project;
+	private Path src;
+	private String destdir;
+	
+	public CompileGroup(Project project) {
+		this.project = project;
+	}
+	
+	public void setSrcdir(Path srcDir) {
+		if (src == null) src = srcDir;
+		else src.append(srcDir);
+	}
+	
+	public Path createSrc() {
+		if (src == null) src = new Path(project);
+		return src.createPath();
+	}
+	
+	public void setDestdir(String destdir) {
+		this.destdir = destdir;
+	}
+	
+	public Path getSrc() {
+		return src;
+	}
+	
+	public String getDestdir() {
+		return destdir;
+	}
+}
@@ -0,0 +1,69 @@
+package com.zwitserloot.ivyplusplus;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.apache.tools.ant.types.selectors.TokenizedPath;
+import org.apache.tools.ant.types.selectors.TokenizedPattern;
+
+/**
+ * Decides, by name, which jar entries to unpack, using ant's usual include and exclude patterns, in the same way {@code unjar} applies those of
+ * a nested {@code <patternset>}.
+ * 
+ * The patterns are parsed once, and not once for every entry in every jar.
+ */
+final class EntryFilter implements Predicate<String> {
+	private final List<TokenizedPattern> includes, excludes;
+	private final boolean caseSensitive;
+	private final String key;
+	
+	/**
+	 * @param includes {@code null} (or empty) to include everything that isn't excluded.
+	 * @param excludes {@code null} to exclude nothing.
+	 */
+	EntryFilter(String[] includes, String[] excludes, boolean caseSensitive) {
+		this.includes = tokenize(includes);
+		this.excludes = tokenize(excludes);
+		this.caseSensitive = caseSensitive;
+		this.key = "includes=" + this.includes + " excludes=" + this.excludes + (caseSensitive ? "" : " ignorecase");
+	}
+	
+	private static List<TokenizedPattern> tokenize(String[] patterns) {
+		List<TokenizedPattern> out = new ArrayList<TokenizedPattern>();
+		if (patterns == null) return out;
+		for (String p : patterns) {
+			String pattern = p.replace('/', File.separatorChar).replace('\\', File.separatorChar);
+			if (pattern.endsWith(File.separator)) pattern += "**";
+			out.add(new TokenizedPattern(pattern));
+		}
+		return out;
+	}
+	
+	/**
+	 * Whether this filter lets everything through; if so, there is no need to ask it about every entry.
+	 */
+	boolean isEmpty() {
+		return includes.isEmpty() && excludes.isEmpty();
+	}
+	
+	/**
+	 * Changes whenever the patterns do; stored in the marker file, so that a change in patterns is noticed.
+	 */
+	String key() {
+		return key;
+	}
+	
+	/**
+	 * @param name An entry name, slash separated, as found in a jar.
+	 */
+	@Override public boolean test(String name) {
+		TokenizedPath path = new TokenizedPath(name.replace('/', File.separatorChar));
+		boolean included = includes.isEmpty();
+		for (int i = 0; !included && i < includes.size(); i++) included = includes.get(i).matchPath(path, caseSensitive);
+		if (!included) return false;
+		for (TokenizedPattern p : excludes) if (p.matchPath(path, caseSensitive)) return false;
+		return true;
+	}
+}
@@ -0,0 +1,61 @@
+package com.zwitserloot.ivyplusplus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Delete;
+
+/**
+ * A directory shared between builds (and checkouts) that holds every jar it is asked for unpacked, once, in a subdirectory named after the SHA-1 of
+ * the jar's content.
+ * 
+ * A subdirectory is unpacked under a temporary name and then renamed into place, so a build running at the same time never sees a half unpacked
+ * jar; if two builds unpack the same jar at once, one of them simply throws its copy away.
+ */
+final class ExtractionStore {
+	private final Task task;
+	private final File root;
+	private final int threads;
+	
+	ExtractionStore(Task task, File root, int threads) {
+		this.task = task;
+		this.root = root;
+		this.threads = threads;
+	}
+	
+	/**
+	 * Returns the directory holding the contents of {@code jar}, unpacking it first if it isn't in the store yet.
+	 * 
+	 * @param sha1 The SHA-1 of {@code jar}, in lowercase hex.
+	 */
+	File unpacked(File jar, String sha1) throws IOException {
+		File dir = new File(root, sha1);
+		if (dir.isDirectory()) return dir;
+		
+		if (!root.isDirectory() && !root.mkdirs()) throw new BuildException("Can't create directory " + root, task.getLocation());
+		File tmp = Files.createTempDirectory(root.toPath(), sha1 + ".tmp").toFile();
+		try {
+			new JarExtractor(task, tmp, threads).extract(Collections.singletonList(jar));
+			try {
+				Files.move(tmp.toPath(), dir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				if (!dir.isDirectory()) throw e;
+				// Another build got there first.
+			}
+		} finally {
+			if (tmp.exists()) {
+				Delete d = new Delete();
+				d.setProject(task.getProject());
+				d.setDir(tmp);
+				d.setQuiet(true);
+				d.execute();
+			}
+		}
+		return dir;
+	}
+}
@@ -0,0 +1,307 @@
+package com.zwitserloot.ivyplusplus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Unpacks a list of jars into one directory, spreading the work over a thread pool.
+ * 
+ * The result is the same as unpacking the jars one after another: if more than one jar has a file with the same name, the one that comes last wins.
+ * This is worked out up front from the jars' central directories, so every file is written exactly once, by one thread.
+ */
+final class JarExtractor {
+	/** Large jars are split into tasks of this many entries, so that one huge jar doesn't end up being unpacked by a single thread. */
+	private static final int ENTRIES_PER_TASK = 256;
+	private static final int BUFFER_SIZE = 65536;
+	
+	private final Task task;
+	private final File dest;
+	private final int threads;
+	private Map<File, File> unpacked;
+	private Predicate<String> filter;
+	private volatile boolean linksFail;
+	
+	JarExtractor(Task task, File dest, int threads) {
+		this.task = task;
+		this.dest = dest;
+		this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Instead of reading files from the jars, hardlink them from these directories, which hold each jar already unpacked. Where a link can't be
+	 * made (for example because the directory is on another file system), the file is copied instead.
+	 */
+	JarExtractor linkFrom(Map<File, File> unpacked) {
+		this.unpacked = unpacked;
+		return this;
+	}
+	
+	/**
+	 * Told what is about to be unpacked, once that is known but before anything is written and before any directory is created.
+	 */
+	interface Plan {
+		/**
+		 * @param owned For each jar, all the files it wins, as returned by {@code extract}.
+		 * @param writing The files that are about to be written; the others are up to date.
+		 */
+		void ready(Map<File, List<String>> owned, List<String> writing);
+	}
+	
+	/**
+	 * Only unpack the entries (and create the directories) whose names this accepts.
+	 */
+	JarExtractor filter(Predicate<String> filter) {
+		this.filter = filter;
+		return this;
+	}
+	
+	private static final class Winner {
+		final int jar;
+		final String name;
+		final ZipEntry entry;
+		
+		Winner(int jar, String name, ZipEntry entry) {
+			this.jar = jar;
+			this.name = name;
+			this.entry = entry;
+		}
+	}
+	
+	/**
+	 * Unpacks the jars, in order, into the destination directory.
+	 * 
+	 * @return For each jar, the (slash separated, relative) names of the files it wrote.
+	 */
+	Map<File, List<String>> extract(List<File> jars) {
+		return extract(jars, null, null);
+	}
+	
+	/**
+	 * Unpacks the jars, in order, into the destination directory, except for the files for which {@code upToDate} says that the jar that
+	 * wins them already put them there.
+	 * 
+	 * @param plan If not {@code null}, told which files will be written before any are.
+	 * @return For each jar, the (slash separated, relative) names of the files it wins, whether they were written now or were up to date.
+	 */
+	Map<File, List<String>> extract(final List<File> jars, BiPredicate<File, String> upToDate, Plan plan) {
+		Map<File, List<String>> written = new LinkedHashMap<File, List<String>>();
+		for (File jar : jars) written.put(jar, new ArrayList<String>());
+		if (jars.isEmpty()) return written;
+		
+		if (!dest.isDirectory() && !dest.mkdirs()) throw new BuildException("Can't create directory " + dest, task.getLocation());
+		ForkJoinPool pool = new ForkJoinPool(Math.min(threads, Math.max(1, jars.size())));
+		final ZipFile[] zips = new ZipFile[jars.size()];
+		final File[] sources = new File[jars.size()];
+		if (unpacked != null) for (int i = 0; i < sources.length; i++) sources[i] = unpacked.get(jars.get(i));
+		try {
+			List<Future<ZipFile>> opening = new ArrayList<Future<ZipFile>>();
+			for (final File jar : jars) opening.add(pool.submit(new Callable<ZipFile>() {
+				@Override public ZipFile call() throws IOException {
+					return new ZipFile(jar);
+				}
+			}));
+			BuildException failure = null;
+			for (int i = 0; i < zips.length; i++) {
+				// Collect every jar that did open, so the finally block closes them all.
+				try {
+					zips[i] = await(opening.get(i), jars.get(i));
+				} catch (BuildException e) {
+					if (failure == null) failure = e;
+				}
+			}
+			if (failure != null) throw failure;
+			
+			// Later jars overwrite earlier ones, so whoever puts a name in this map last gets to write it.
+			Map<String, Winner> winners = new HashMap<String, Winner>();
+			TreeSet<String> dirs = new TreeSet<String>();
+			for (int i = 0; i < zips.length; i++) {
+				for (Enumeration<? extends ZipEntry> e = zips[i].entries(); e.hasMoreElements();) {
+					ZipEntry entry = e.nextElement();
+					String name = safeName(entry.getName());
+					if (name == null) {
+						task.log("Skipping " + entry.getName() + " in " + jars.get(i) + " as it would end up outside of " + dest, Project.MSG_WARN);
+						continue;
+					}
+					// Skipped entries aren't even looked at again, let alone read.
+					if (filter != null && !filter.test(name)) continue;
+					if (entry.isDirectory()) {
+						if (!name.isEmpty()) dirs.add(name);
+						continue;
+					}
+					winners.put(name, new Winner(i, name, entry));
+					int slash = name.lastIndexOf('/');
+					if (slash > 0) dirs.add(name.substring(0, slash));
+				}
+			}
+			
+			// On a case insensitive file system, names that differ only in case are the same file; those are written one after another, in jar order.
+			Map<String, List<String>> byLowerCase = new HashMap<String, List<String>>();
+			for (String name : winners.keySet()) {
+				String key = name.toLowerCase(Locale.ROOT);
+				List<String> list = byLowerCase.get(key);
+				if (list == null) byLowerCase.put(key, list = new ArrayList<String>(1));
+				list.add(name);
+			}
+			
+			List<List<Winner>> perJar = new ArrayList<List<Winner>>();
+			for (int i = 0; i < zips.length; i++) perJar.add(new ArrayList<Winner>());
+			List<Winner> clashes = new ArrayList<Winner>();
+			for (List<String> names : byLowerCase.values()) {
+				if (names.size() == 1) {
+					Winner w = winners.get(names.get(0));
+					written.get(jars.get(w.jar)).add(w.name);
+					if (upToDate == null || !upToDate.test(jars.get(w.jar), w.name)) perJar.get(w.jar).add(w);
+				} else {
+					for (String name : names) {
+						Winner w = winners.get(name);
+						written.get(jars.get(w.jar)).add(w.name);
+						clashes.add(w);
+					}
+				}
+			}
+			
+			if (plan != null) {
+				List<String> names = new ArrayList<String>();
+				for (List<Winner> list : perJar) for (Winner w : list) names.add(w.name);
+				for (Winner w : clashes) names.add(w.name);
+				plan.ready(written, names);
+			}
+			
+			// Parents sort before their children, so every mkdirs() call after the first in a tree has at most one directory to create.
+			for (String dir : dirs) {
+				File d = new File(dest, dir);
+				if (!d.isDirectory() && !d.mkdirs()) throw new BuildException("Can't create directory " + d, task.getLocation());
+			}
+			
+			List<Future<?>> writing = new ArrayList<Future<?>>();
+			List<File> writingJars = new ArrayList<File>();
+			for (int i = 0; i < zips.length; i++) {
+				List<Winner> list = perJar.get(i);
+				if (!list.isEmpty()) task.log("Expanding: " + jars.get(i) + " into " + dest, Project.MSG_INFO);
+				for (int from = 0; from < list.size(); from += ENTRIES_PER_TASK) {
+					final List<Winner> chunk = list.subList(from, Math.min(list.size(), from + ENTRIES_PER_TASK));
+					writing.add(pool.submit(new Callable<Void>() {
+						@Override public Void call() throws IOException {
+							write(zips, sources, chunk);
+							return null;
+						}
+					}));
+					writingJars.add(jars.get(i));
+				}
+			}
+			if (!clashes.isEmpty()) {
+				Collections.sort(clashes, (a, b) -> a.jar - b.jar);
+				final List<Winner> ordered = clashes;
+				writing.add(pool.submit(new Callable<Void>() {
+					@Override public Void call() throws IOException {
+						write(zips, sources, ordered);
+						return null;
+					}
+				}));
+				writingJars.add(jars.get(ordered.get(0).jar));
+			}
+			
+			for (int i = 0; i < writing.size(); i++) {
+				// Wait for everything, even after a failure, so nothing is still writing into dest once the task has finished.
+				try {
+					await(writing.get(i), writingJars.get(i));
+				} catch (BuildException e) {
+					if (failure == null) failure = e;
+				}
+			}
+			if (failure != null) throw failure;
+			return written;
+		} finally {
+			pool.shutdown();
+			for (ZipFile zip : zips) {
+				if (zip == null) continue;
+				try {
+					zip.close();
+				} catch (IOException ignore) {
+					// Only read from; nothing lost.
+				}
+			}
+		}
+	}
+	
+	private void write(ZipFile[] zips, File[] sources, List<Winner> entries) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		for (Winner w : entries) {
+			File target = new File(dest, w.name);
+			// The old file may be a hardlink into a shared store; writing into it would change every other copy too.
+			Files.deleteIfExists(target.toPath());
+			if (sources[w.jar] != null) {
+				link(new File(sources[w.jar], w.name), target);
+				continue;
+			}
+			try (InputStream in = zips[w.jar].getInputStream(w.entry); OutputStream out = new FileOutputStream(target)) {
+				for (int r = in.read(buffer); r != -1; r = in.read(buffer)) out.write(buffer, 0, r);
+			}
+			long time = w.entry.getTime();
+			if (time != -1) target.setLastModified(time);
+		}
+	}
+	
+	private void link(File source, File target) throws IOException {
+		if (!linksFail) {
+			try {
+				Files.createLink(target.toPath(), source.toPath());
+				return;
+			} catch (IOException | UnsupportedOperationException e) {
+				// Typically the store and dest are on different file systems; that won't change halfway through, so stop trying.
+				linksFail = true;
+				task.log("Can't hardlink " + source + " to " + target + " (" + e + "); copying instead", Project.MSG_VERBOSE);
+			}
+		}
+		Files.copy(source.toPath(), target.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+	}
+	
+	private <T> T await(Future<T> future, File jar) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BuildException("Interrupted while expanding " + jar, e, task.getLocation());
+		} catch (ExecutionException e) {
+			throw new BuildException("Error while expanding " + jar + ": " + e.getCause(), e.getCause(), task.getLocation());
+		}
+	}
+	
+	/**
+	 * Returns the entry name relative to the destination directory (leading slashes stripped, as {@code unjar} does), or {@code null} if it would
+	 * end up outside of it.
+	 */
+	static String safeName(String entryName) {
+		String name = entryName.replace('\\', '/');
+		while (name.startsWith("/")) name = name.substring(1);
+		if (name.endsWith("/")) name = name.substring(0, name.length() - 1);
+		for (String part : name.split("/")) if (part.equals("..")) return null;
+		return name;
+	}
+}
@@ -0,0 +1,460 @@
+package com.zwitserloot.ivyplusplus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Merges jars into one jar without unpacking them: every entry's compressed bytes are copied as is, so nothing is inflated or deflated again.
+ * 
+ * The exceptions are the files in {@code META-INF/services}, which are merged (each line once, in jar order) rather than picked from one jar, since
+ * the merged jar would otherwise only offer the service implementations of one of them.
+ * 
+ * Signature files ({@code META-INF/*.SF} and the blocks that go with them) are left out: they can't be valid for the merged jar, and a JVM that
+ * finds them refuses to load its classes.
+ */
+final class JarMerger {
+	enum Duplicate {
+		/** The last jar that has the entry wins, which is what unpacking the jars one after another would do. */
+		OVERWRITE,
+		/** The first jar that has the entry wins. */
+		PRESERVE,
+		/** An entry that is in more than one jar is an error, except for the manifest, which is taken from the first jar that has one. */
+		FAIL;
+	}
+	
+	private static final String MANIFEST = "META-INF/MANIFEST.MF";
+	private static final String SERVICES = "META-INF/services/";
+	
+	private static final int LOCAL_HEADER = 0x04034b50, CENTRAL_HEADER = 0x02014b50, END = 0x06054b50, ZIP64_END = 0x06064b50, ZIP64_LOCATOR = 0x07064b50;
+	private static final long MAX_32 = 0xFFFFFFFFL;
+	private static final int MAX_16 = 0xFFFF;
+	private static final int BUFFER_SIZE = 65536;
+	
+	private final Task task;
+	private final Duplicate duplicate;
+	private final Predicate<String> filter;
+	
+	/**
+	 * @param filter Only entries whose names this accepts end up in the merged jar; {@code null} to take everything.
+	 */
+	JarMerger(Task task, Duplicate duplicate, Predicate<String> filter) {
+		this.task = task;
+		this.duplicate = duplicate;
+		this.filter = filter;
+	}
+	
+	private static final class Entry {
+		FileChannel source;
+		File jar;
+		String name;
+		byte[] rawName;
+		int versionNeeded, flags, method, dosTime, externalAttributes;
+		long crc, compressedSize, size, localHeaderOffset;
+		
+		/** Set for merged service files instead of {@code source}: the already deflated content. */
+		byte[] merged;
+	}
+	
+	/**
+	 * Writes all entries of {@code jars} to {@code out}. The jar is written under a temporary name first and then moved into place.
+	 */
+	void merge(List<File> jars, File out) throws IOException {
+		List<FileChannel> channels = new ArrayList<FileChannel>();
+		try {
+			Map<String, Entry> chosen = new LinkedHashMap<String, Entry>();
+			Map<String, List<Entry>> services = new LinkedHashMap<String, List<Entry>>();
+			for (File jar : jars) {
+				FileChannel ch = FileChannel.open(jar.toPath(), StandardOpenOption.READ);
+				channels.add(ch);
+				for (Entry e : readCentralDirectory(jar, ch)) {
+					if (filter != null && !filter.test(e.name)) continue;
+					if (isSignatureFile(e.name)) {
+						task.log("Leaving out " + e.name + " from " + jar + "; the merged jar isn't signed", Project.MSG_VERBOSE);
+						continue;
+					}
+					if (e.name.startsWith(SERVICES) && !e.name.endsWith("/")) {
+						List<Entry> list = services.get(e.name);
+						if (list == null) {
+							services.put(e.name, list = new ArrayList<Entry>());
+							// Reserves its place in the output order.
+							chosen.put(e.name, null);
+						}
+						list.add(e);
+						continue;
+					}
+					Entry old = chosen.get(e.name);
+					if (old == null) {
+						chosen.put(e.name, e);
+					} else if (!e.name.endsWith("/")) {
+						// Nearly every jar has a manifest, so as with <jar duplicate="fail">, that one doesn't count; the first jar's is kept.
+						Duplicate policy = duplicate == Duplicate.FAIL && e.name.equals(MANIFEST) ? Duplicate.PRESERVE : duplicate;
+						if (policy == Duplicate.FAIL) throw new BuildException("Both " + old.jar + " and " + jar + " contain " + e.name, task.getLocation());
+						task.log(e.name + " is in both " + old.jar + " and " + jar + "; using the one from " + (policy == Duplicate.OVERWRITE ? jar : old.jar), Project.MSG_VERBOSE);
+						// A LinkedHashMap keeps the position of the first one; only which jar it comes from changes.
+						if (policy == Duplicate.OVERWRITE) chosen.put(e.name, e);
+					}
+				}
+			}
+			for (Map.Entry<String, List<Entry>> s : services.entrySet()) chosen.put(s.getKey(), mergeServices(s.getKey(), s.getValue()));
+			
+			List<Entry> order = new ArrayList<Entry>(chosen.size());
+			// The manifest goes first, as JarInputStream only finds it there.
+			Entry metaInf = chosen.remove("META-INF/");
+			Entry manifest = chosen.remove(MANIFEST);
+			if (metaInf != null) order.add(metaInf);
+			if (manifest != null) order.add(manifest);
+			order.addAll(chosen.values());
+			
+			File parent = out.getAbsoluteFile().getParentFile();
+			parent.mkdirs();
+			File tmp = new File(parent, out.getName() + ".tmp");
+			try (OutputStream os = new FileOutputStream(tmp)) {
+				write(order, os);
+			} catch (IOException | RuntimeException e) {
+				tmp.delete();
+				throw e;
+			}
+			Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			for (FileChannel ch : channels) {
+				try {
+					ch.close();
+				} catch (IOException ignore) {
+					// Only read from; nothing lost.
+				}
+			}
+		}
+	}
+	
+	/** Same as what {@code java.util.jar} considers part of a signature: directly in {@code META-INF}, and named {@code *.SF}, {@code *.RSA}, {@code *.DSA}, {@code *.EC} or {@code SIG-*}. */
+	static boolean isSignatureFile(String name) {
+		if (!name.startsWith("META-INF/") || name.indexOf('/', 9) != -1) return false;
+		String file = name.substring(9).toUpperCase(Locale.ROOT);
+		return file.endsWith(".SF") || file.endsWith(".RSA") || file.endsWith(".DSA") || file.endsWith(".EC") || file.startsWith("SIG-");
+	}
+	
+	private List<Entry> readCentralDirectory(File jar, FileChannel ch) throws IOException {
+		long fileSize = ch.size();
+		// The end record is 22 bytes, followed by a comment of at most 64k.
+		int tailSize = (int) Math.min(fileSize, 22 + MAX_16);
+		ByteBuffer tail = read(ch, fileSize - tailSize, tailSize);
+		int end = -1;
+		for (int i = tailSize - 22; i >= 0; i--) {
+			if (tail.getInt(i) == END) {
+				end = i;
+				break;
+			}
+		}
+		if (end == -1) throw new ZipException(jar + " is not a zip file");
+		long count = tail.getShort(end + 10) & MAX_16;
+		long cdSize = tail.getInt(end + 12) & MAX_32;
+		long cdOffset = tail.getInt(end + 16) & MAX_32;
+		if ((count == MAX_16 || cdSize == MAX_32 || cdOffset == MAX_32) && end >= 20 && tail.getInt(end - 20) == ZIP64_LOCATOR) {
+			ByteBuffer z = read(ch, tail.getLong(end - 12), 56);
+			if (z.getInt(0) != ZIP64_END) throw new ZipException(jar + " has a broken zip64 end record");
+			count = z.getLong(32);
+			cdSize = z.getLong(40);
+			cdOffset = z.getLong(48);
+		}
+		if (cdSize > Integer.MAX_VALUE) throw new ZipException(jar + " has a central directory too large to read");
+		
+		ByteBuffer cd = read(ch, cdOffset, (int) cdSize);
+		List<Entry> entries = new ArrayList<Entry>((int) Math.min(count, MAX_16));
+		int pos = 0;
+		for (long i = 0; i < count; i++) {
+			if (cd.getInt(pos) != CENTRAL_HEADER) throw new ZipException(jar + " has a broken central directory");
+			Entry e = new Entry();
+			e.source = ch;
+			e.jar = jar;
+			e.versionNeeded = cd.getShort(pos + 6) & MAX_16;
+			e.flags = cd.getShort(pos + 8) & MAX_16;
+			e.method = cd.getShort(pos + 10) & MAX_16;
+			e.dosTime = cd.getInt(pos + 12);
+			e.crc = cd.getInt(pos + 16) & MAX_32;
+			e.compressedSize = cd.getInt(pos + 20) & MAX_32;
+			e.size = cd.getInt(pos + 24) & MAX_32;
+			int nameLen = cd.getShort(pos + 28) & MAX_16;
+			int extraLen = cd.getShort(pos + 30) & MAX_16;
+			int commentLen = cd.getShort(pos + 32) & MAX_16;
+			e.externalAttributes = cd.getInt(pos + 38);
+			e.localHeaderOffset = cd.getInt(pos + 42) & MAX_32;
+			e.rawName = new byte[nameLen];
+			cd.position(pos + 46);
+			cd.get(e.rawName);
+			e.name = new String(e.rawName, StandardCharsets.UTF_8);
+			readZip64Extra(e, cd, pos + 46 + nameLen, extraLen);
+			if ((e.flags & 1) != 0) throw new ZipException(jar + " has an encrypted entry: " + e.name);
+			if (e.method != 0 && e.method != 8) throw new ZipException(jar + " has an entry stored with an unsupported method (" + e.method + "): " + e.name);
+			entries.add(e);
+			pos += 46 + nameLen + extraLen + commentLen;
+		}
+		return entries;
+	}
+	
+	/** The zip64 extra field holds, in this order, whichever of these didn't fit in their 32-bit fields. */
+	private static void readZip64Extra(Entry e, ByteBuffer cd, int start, int len) {
+		for (int p = start; p + 4 <= start + len;) {
+			int id = cd.getShort(p) & MAX_16;
+			int size = cd.getShort(p + 2) & MAX_16;
+			if (id == 1) {
+				int q = p + 4;
+				if (e.size == MAX_32) { e.size = cd.getLong(q); q += 8; }
+				if (e.compressedSize == MAX_32) { e.compressedSize = cd.getLong(q); q += 8; }
+				if (e.localHeaderOffset == MAX_32) e.localHeaderOffset = cd.getLong(q);
+				return;
+			}
+			p += 4 + size;
+		}
+	}
+	
+	private Entry mergeServices(String name, List<Entry> parts) throws IOException {
+		if (parts.size() == 1) return parts.get(0);
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		Set<String> seen = new HashSet<String>();
+		for (Entry part : parts) {
+			String text = new String(inflate(part), StandardCharsets.UTF_8);
+			for (String line : text.split("\r\n|\r|\n")) {
+				String key = line.trim();
+				if (key.isEmpty() || !seen.add(key)) continue;
+				content.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		byte[] raw = content.toByteArray();
+		Entry e = new Entry();
+		Entry first = parts.get(0);
+		e.jar = first.jar;
+		e.name = name;
+		e.rawName = first.rawName;
+		e.versionNeeded = 20;
+		e.flags = first.flags & 0x800;
+		e.method = 8;
+		e.dosTime = parts.get(parts.size() - 1).dosTime;
+		e.externalAttributes = first.externalAttributes;
+		CRC32 crc = new CRC32();
+		crc.update(raw);
+		e.crc = crc.getValue();
+		e.size = raw.length;
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+			ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			while (!deflater.finished()) deflated.write(buffer, 0, deflater.deflate(buffer));
+			e.merged = deflated.toByteArray();
+		} finally {
+			deflater.end();
+		}
+		e.compressedSize = e.merged.length;
+		return e;
+	}
+	
+	private static byte[] inflate(Entry e) throws IOException {
+		if (e.compressedSize > Integer.MAX_VALUE || e.size > Integer.MAX_VALUE) throw new ZipException(e.jar + ": " + e.name + " is too large to merge");
+		byte[] data = new byte[(int) e.compressedSize];
+		read(e.source, dataOffset(e), data.length).get(data);
+		if (e.method == 0) return data;
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(data);
+			byte[] out = new byte[(int) e.size];
+			int done = 0;
+			while (done < out.length && !inflater.finished()) {
+				int n = inflater.inflate(out, done, out.length - done);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				done += n;
+			}
+			if (done != out.length) throw new ZipException(e.jar + ": " + e.name + " is corrupt");
+			return out;
+		} catch (DataFormatException ex) {
+			throw new ZipException(e.jar + ": " + e.name + " is corrupt: " + ex.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+	
+	/** The local header repeats the name, and has its own extra field, which needn't be the same length as the one in the central directory. */
+	private static long dataOffset(Entry e) throws IOException {
+		ByteBuffer local = read(e.source, e.localHeaderOffset, 30);
+		if (local.getInt(0) != LOCAL_HEADER) throw new ZipException(e.jar + " has a broken local header for " + e.name);
+		return e.localHeaderOffset + 30 + (local.getShort(26) & MAX_16) + (local.getShort(28) & MAX_16);
+	}
+	
+	private void write(List<Entry> entries, OutputStream os) throws IOException {
+		CountingOutput out = new CountingOutput(os);
+		long[] offsets = new long[entries.size()];
+		ByteBuffer copyBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		for (int i = 0; i < entries.size(); i++) {
+			Entry e = entries.get(i);
+			if (e.size >= MAX_32 || e.compressedSize >= MAX_32) throw new ZipException(e.jar + ": " + e.name + " is too large (4GB or more) to merge");
+			offsets[i] = out.count;
+			ByteBuffer h = header(30 + e.rawName.length);
+			h.putInt(LOCAL_HEADER);
+			h.putShort((short) e.versionNeeded);
+			// The sizes and CRC go in the local header, so there is no data descriptor after the data (bit 3).
+			h.putShort((short) (e.flags & ~8));
+			h.putShort((short) e.method);
+			h.putInt(e.dosTime);
+			h.putInt((int) e.crc);
+			h.putInt((int) e.compressedSize);
+			h.putInt((int) e.size);
+			h.putShort((short) e.rawName.length);
+			h.putShort((short) 0);
+			h.put(e.rawName);
+			out.write(h.array());
+			
+			if (e.merged != null) {
+				out.write(e.merged);
+				continue;
+			}
+			long pos = dataOffset(e), left = e.compressedSize;
+			while (left > 0) {
+				copyBuffer.clear();
+				if (left < copyBuffer.capacity()) copyBuffer.limit((int) left);
+				int r = e.source.read(copyBuffer, pos);
+				if (r == -1) throw new EOFException(e.jar + " is truncated");
+				out.write(copyBuffer.array(), 0, r);
+				pos += r;
+				left -= r;
+			}
+		}
+		
+		long cdOffset = out.count;
+		for (int i = 0; i < entries.size(); i++) {
+			Entry e = entries.get(i);
+			boolean zip64 = offsets[i] >= MAX_32;
+			ByteBuffer h = header(46 + e.rawName.length + (zip64 ? 12 : 0));
+			h.putInt(CENTRAL_HEADER);
+			h.putShort((short) (zip64 ? 45 : e.versionNeeded));
+			h.putShort((short) (zip64 ? 45 : e.versionNeeded));
+			h.putShort((short) (e.flags & ~8));
+			h.putShort((short) e.method);
+			h.putInt(e.dosTime);
+			h.putInt((int) e.crc);
+			h.putInt((int) e.compressedSize);
+			h.putInt((int) e.size);
+			h.putShort((short) e.rawName.length);
+			h.putShort((short) (zip64 ? 12 : 0));
+			h.putShort((short) 0);
+			h.putShort((short) 0);
+			h.putShort((short) 0);
+			h.putInt(e.externalAttributes);
+			h.putInt((int) (zip64 ? MAX_32 : offsets[i]));
+			h.put(e.rawName);
+			if (zip64) {
+				h.putShort((short) 1);
+				h.putShort((short) 8);
+				h.putLong(offsets[i]);
+			}
+			out.write(h.array());
+		}
+		long cdSize = out.count - cdOffset;
+		
+		long count = entries.size();
+		boolean zip64 = count >= MAX_16 || cdOffset >= MAX_32 || cdSize >= MAX_32;
+		if (zip64) {
+			long zip64End = out.count;
+			ByteBuffer h = header(56 + 20);
+			h.putInt(ZIP64_END);
+			h.putLong(44);
+			h.putShort((short) 45);
+			h.putShort((short) 45);
+			h.putInt(0);
+			h.putInt(0);
+			h.putLong(count);
+			h.putLong(count);
+			h.putLong(cdSize);
+			h.putLong(cdOffset);
+			h.putInt(ZIP64_LOCATOR);
+			h.putInt(0);
+			h.putLong(zip64End);
+			h.putInt(1);
+			out.write(h.array());
+		}
+		ByteBuffer h = header(22);
+		h.putInt(END);
+		h.putShort((short) 0);
+		h.putShort((short) 0);
+		h.putShort((short) (zip64 ? MAX_16 : count));
+		h.putShort((short) (zip64 ? MAX_16 : count));
+		h.putInt((int) (zip64 ? MAX_32 : cdSize));
+		h.putInt((int) (zip64 ? MAX_32 : cdOffset));
+		h.putShort((short) 0);
+		out.write(h.array());
+		out.flush();
+	}
+	
+	private static ByteBuffer header(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	private static ByteBuffer read(FileChannel ch, long position, int size) throws IOException {
+		ByteBuffer buf = header(size);
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, position + buf.position()) == -1) throw new EOFException("Unexpected end of zip file");
+		}
+		buf.flip();
+		return buf;
+	}
+	
+	private static final class CountingOutput {
+		private final OutputStream out;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int pos;
+		long count;
+		
+		CountingOutput(OutputStream out) {
+			this.out = out;
+		}
+		
+		void write(byte[] b) throws IOException {
+			write(b, 0, b.length);
+		}
+		
+		void write(byte[] b, int off, int len) throws IOException {
+			count += len;
+			if (len > buffer.length - pos) {
+				flush();
+				if (len > buffer.length) {
+					out.write(b, off, len);
+					return;
+				}
+			}
+			System.arraycopy(b, off, buffer, pos, len);
+			pos += len;
+		}
+		
+		void flush() throws IOException {
+			out.write(buffer, 0, pos);
+			pos = 0;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.zwitserloot.ivyplusplus.ecj;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes class files straight into the destination directory, exactly once each.
+ * 
+ * Directories are created at most once per compile. Optionally, class files whose bytes did not change are left alone, so that their
+ * timestamps stay put for whatever looks at the destination directory next.
+ */
+public class ClassFileWriter implements ClassOutput {
+	private final File destdir;
+	private final boolean skipIdentical;
+	private final Set<String> knownDirs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicInteger skipped = new AtomicInteger();
+	private File stash;
+	
+	public ClassFileWriter(File destdir, boolean skipIdentical) {
+		this.destdir = destdir;
+		this.skipIdentical = skipIdentical;
+	}
+	
+	/**
+	 * Class files that were moved out of the way before recompiling (see {@link IncrementalState#setStash(File)}) are looked for here,
+	 * and moved back instead of rewritten if identical.
+	 */
+	public void setStash(File stash) {
+		this.stash = stash;
+	}
+	
+	@Override public File write(String relativeName, byte[] content) {
+		File target = new File(destdir, relativeName);
+		int slash = relativeName.lastIndexOf('/');
+		if (slash > 0 && knownDirs.add(relativeName.substring(0, slash))) target.getParentFile().mkdirs();
+		
+		if (skipIdentical) {
+			if (hasContent(target, content)) {
+				skipped.incrementAndGet();
+				return target;
+			}
+			File stashed = stash == null ? null : new File(stash, relativeName);
+			if (stashed != null && hasContent(stashed, content) && !target.exists() && stashed.renameTo(target)) {
+				skipped.incrementAndGet();
+				return target;
+			}
+		}
+		
+		CompilerRequestorImpl.writeFile(target, content);
+		return target;
+	}
+	
+	/**
+	 * Returns how many class files were left untouched because their content did not change.
+	 */
+	public int getSkipped() {
+		return skipped.get();
+	}
+	
+	private static boolean hasContent(File file, byte[] content) {
+		if (file.length() != content.length || !file.isFile()) return false;
+		try {
+			return Arrays.equals(Files.readAllBytes(file.toPath()), content);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package com.zwitserloot.ivyplusplus.ecj;
+
+import java.io.File;
+
+/**
+ * Receives the class files produced by an ecj compile.
+ */
+public interface ClassOutput {
+	/**
+	 * @param relativeName path of the class file relative to the output root, with {@code /} as separator.
+	 * @param content The bytes of the class file.
+	 * @return The file on disk that now holds {@code content}, or {@code null} if this output doesn't write to individual files.
+	 */
+	File write(String relativeName, byte[] content);
+}
@@ -0,0 +1,348 @@
+package com.zwitserloot.ivyplusplus.ecj;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.ProviderNotFoundException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.eclipse.jdt.internal.compiler.batch.ClasspathJar;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem.Classpath;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+
+/**
+ * Keeps, for every classpath jar, the set of packages in it, so that ecj can skip jars that cannot possibly contain the type it is looking for
+ * without opening them.
+ * 
+ * The index of a jar is stored in a file in the index directory, and is reused for as long as the jar's path, size and last modified time stay the same.
+ * The running JDK's module image gets the same treatment, keyed on its {@code java.home} and version.
+ */
+public class ClasspathIndex {
+	private static final String HEADER = "ipp-ecj-index 2";
+	private static final String JDK_HEADER = "ipp-ecj-jdk-index 1";
+	private static final ConcurrentMap<String, Packages> LOADED = new ConcurrentHashMap<String, Packages>();
+	private static final ConcurrentMap<String, JdkImage> LOADED_JDKS = new ConcurrentHashMap<String, JdkImage>();
+	
+	private final File dir;
+	
+	public ClasspathIndex(File dir) {
+		this.dir = dir;
+	}
+	
+	public static File defaultDirectory() {
+		return new File(System.getProperty("user.home"), ".ivy2/ipp-ecj-index");
+	}
+	
+	/**
+	 * Returns a classpath entry for the given file that consults the package index before opening the jar.
+	 * Falls back to ecj's own entry for anything that isn't a readable jar.
+	 */
+	public Classpath createClasspath(File file) {
+		String name = file.getName().toLowerCase();
+		if (file.isFile() && (name.endsWith(".jar") || name.endsWith(".zip"))) {
+			try {
+				return new IndexedClasspathJar(file, packagesOf(file));
+			} catch (IOException e) {
+				// Not a valid zip; let ecj deal with it in its usual way.
+			}
+		}
+		return FileSystem.getClasspath(file.getAbsolutePath(), "UTF-8", null);
+	}
+	
+	/**
+	 * Returns a classpath entry for the module image of the running JDK, or {@code null} if this VM has no module image (java 8 and below).
+	 */
+	public Classpath createSystemClasspath() {
+		java.nio.file.FileSystem fs;
+		try {
+			fs = FileSystems.getFileSystem(URI.create("jrt:/"));
+		} catch (FileSystemNotFoundException | ProviderNotFoundException e) {
+			return null;
+		}
+		File javaHome = new File(System.getProperty("java.home")).getAbsoluteFile();
+		File modules = new File(javaHome, "lib/modules");
+		String key = javaHome.getPath() + "\t" + System.getProperty("java.version") + "\t" + modules.length() + "\t" + modules.lastModified();
+		JdkImage image = LOADED_JDKS.get(key);
+		if (image == null) {
+			File indexFile = new File(dir, "jdk-" + sha1(javaHome.getPath()) + ".idx");
+			image = readJdk(indexFile, key, fs);
+			if (image == null) {
+				try {
+					image = scanJdk(fs);
+				} catch (IOException e) {
+					return null;
+				}
+				try {
+					writeJdk(indexFile, key, image);
+				} catch (IOException e) {
+					// The index still works for this build; it just has to be rebuilt next time.
+				}
+			}
+			LOADED_JDKS.put(key, image);
+		}
+		return new IndexedClasspathJrt(javaHome, image);
+	}
+	
+	Packages packagesOf(File jar) throws IOException {
+		File f = jar.getAbsoluteFile();
+		String key = f.getPath() + "\t" + f.length() + "\t" + f.lastModified();
+		Packages packages = LOADED.get(key);
+		if (packages != null) return packages;
+		
+		File indexFile = new File(dir, sha1(f.getPath()) + ".idx");
+		packages = read(indexFile, key);
+		if (packages == null) {
+			packages = scan(f);
+			try {
+				write(indexFile, key, packages);
+			} catch (IOException e) {
+				// The index still works for this build; it just has to be rebuilt next time.
+			}
+		}
+		LOADED.put(key, packages);
+		return packages;
+	}
+	
+	/** One package per line; those that directly contain class files are followed by a tab and {@code c}. */
+	private static Packages read(File indexFile, String key) {
+		if (!indexFile.isFile()) return null;
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+			if (!HEADER.equals(br.readLine()) || !key.equals(br.readLine())) return null;
+			Set<String> all = new HashSet<String>();
+			Set<String> withClasses = new HashSet<String>();
+			for (String line = br.readLine(); line != null; line = br.readLine()) {
+				if (line.endsWith("\tc")) {
+					line = line.substring(0, line.length() - 2);
+					withClasses.add(line);
+				}
+				all.add(line);
+			}
+			return new Packages(all, withClasses);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	private static void write(File indexFile, String key, Packages packages) throws IOException {
+		indexFile.getParentFile().mkdirs();
+		File tmp = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+		try {
+			try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+				w.write(HEADER + "\n" + key + "\n");
+				for (String pkg : packages.all) w.write(pkg + (packages.withClasses.contains(pkg) ? "\tc\n" : "\n"));
+			}
+			// Concurrent builds may race to write the same index; they'd write the same content, so last one wins.
+			Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+	}
+	
+	/**
+	 * Lists the packages in the jar the same way ecj's {@code ClasspathJar} does. For package lookups, every parent directory of every entry counts,
+	 * as does the default package. For {@code listPackages} (which is what ecj checks for split packages), only directories that hold class files count.
+	 */
+	private static Packages scan(File jar) throws IOException {
+		Set<String> all = new HashSet<String>();
+		Set<String> withClasses = new HashSet<String>();
+		all.add("");
+		try (ZipFile zip = new ZipFile(jar)) {
+			for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+				String fileName = e.nextElement().getName();
+				int last = fileName.lastIndexOf('/');
+				if (last != -1 && fileName.toLowerCase(Locale.ROOT).endsWith(".class")) withClasses.add(fileName.substring(0, last));
+				while (last > 0) {
+					String packageName = fileName.substring(0, last);
+					if (!all.add(packageName)) break;
+					last = packageName.lastIndexOf('/');
+				}
+			}
+		}
+		return new Packages(all, withClasses);
+	}
+	
+	private static JdkImage readJdk(File indexFile, String key, java.nio.file.FileSystem fs) {
+		if (!indexFile.isFile()) return null;
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+			if (!JDK_HEADER.equals(br.readLine()) || !key.equals(br.readLine())) return null;
+			String moduleLine = br.readLine();
+			if (moduleLine == null) return null;
+			List<String> modules = Arrays.asList(moduleLine.split("\t"));
+			Map<String, List<String>> packages = new HashMap<String, List<String>>();
+			for (String line = br.readLine(); line != null; line = br.readLine()) {
+				String[] parts = line.split("\t");
+				packages.put(parts[0], Collections.unmodifiableList(Arrays.asList(parts).subList(1, parts.length)));
+			}
+			return new JdkImage(fs, modules, packages);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	private static void writeJdk(File indexFile, String key, JdkImage image) throws IOException {
+		indexFile.getParentFile().mkdirs();
+		File tmp = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+		try {
+			try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+				w.write(JDK_HEADER + "\n" + key + "\n" + String.join("\t", image.modules) + "\n");
+				for (Map.Entry<String, List<String>> e : image.packages.entrySet()) w.write(e.getKey() + "\t" + String.join("\t", e.getValue()) + "\n");
+			}
+			Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+	}
+	
+	/**
+	 * Lists the modules, and for each package the modules that contain it, the same way ecj's {@code JRTUtil} does: from the image's
+	 * {@code /packages} directory, with {@code java.base} first whenever a package is split across modules.
+	 */
+	private static JdkImage scanJdk(java.nio.file.FileSystem fs) throws IOException {
+		List<String> modules = new ArrayList<String>();
+		try (DirectoryStream<java.nio.file.Path> stream = Files.newDirectoryStream(fs.getPath("/modules"))) {
+			for (java.nio.file.Path module : stream) modules.add(module.getFileName().toString());
+		}
+		Map<String, List<String>> packages = new HashMap<String, List<String>>();
+		try (DirectoryStream<java.nio.file.Path> stream = Files.newDirectoryStream(fs.getPath("/packages"))) {
+			for (java.nio.file.Path pkg : stream) {
+				List<String> owners = new ArrayList<String>();
+				try (DirectoryStream<java.nio.file.Path> links = Files.newDirectoryStream(pkg)) {
+					for (java.nio.file.Path link : links) {
+						String module = link.getFileName().toString();
+						if (module.equals("java.base")) owners.add(0, module);
+						else owners.add(module);
+					}
+				}
+				packages.put(pkg.getFileName().toString().replace('.', '/'), Collections.unmodifiableList(owners));
+			}
+		}
+		return new JdkImage(fs, Collections.unmodifiableList(modules), packages);
+	}
+	
+	private static String sha1(String s) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest) sb.append(String.format("%02x", b & 0xFF));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new InternalError("SHA-1 not available");
+		}
+	}
+	
+	/**
+	 * A {@code ClasspathJar} that answers package queries from the index, and only opens the jar once a type in one of its packages is requested.
+	 */
+	static final class IndexedClasspathJar extends ClasspathJar {
+		private final Set<String> packages;
+		private final Set<String> classPackages;
+		
+		IndexedClasspathJar(File file, Packages packages) {
+			super(file, true, null, null);
+			this.packages = packages.all;
+			this.classPackages = packages.withClasses;
+		}
+		
+		@Override public void initialize() throws IOException {
+			// Deliberately lazy; see open().
+		}
+		
+		private synchronized boolean open() {
+			if (zipFile != null) return true;
+			try {
+				zipFile = new ZipFile(file);
+				return true;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		
+		@Override public char[][] getModulesDeclaringPackage(String qualifiedPackageName, String moduleName) {
+			return singletonModuleNameIf(packages.contains(qualifiedPackageName));
+		}
+		
+		@Override public NameEnvironmentAnswer findClass(char[] typeName, String qualifiedPackageName, String moduleName, String qualifiedBinaryFileName, boolean asBinaryOnly) {
+			if (!packages.contains(qualifiedPackageName) || !open()) return null;
+			return super.findClass(typeName, qualifiedPackageName, moduleName, qualifiedBinaryFileName, asBinaryOnly);
+		}
+		
+		@Override public boolean hasCompilationUnit(String qualifiedPackageName, String moduleName) {
+			if (!packages.contains(qualifiedPackageName) || !open()) return false;
+			return super.hasCompilationUnit(qualifiedPackageName, moduleName);
+		}
+		
+		@Override public char[][][] findTypeNames(String qualifiedPackageName, String moduleName) {
+			if (!packages.contains(qualifiedPackageName) || !open()) return null;
+			return super.findTypeNames(qualifiedPackageName, moduleName);
+		}
+		
+		@Override public char[][] listPackages() {
+			Set<String> out = new HashSet<String>();
+			for (String pkg : classPackages) out.add(pkg.replace('/', '.'));
+			char[][] result = new char[out.size()][];
+			int i = 0;
+			for (String pkg : out) result[i++] = pkg.toCharArray();
+			return result;
+		}
+		
+		@Override public boolean hasAnnotationFileFor(String qualifiedTypeName) {
+			return open() && super.hasAnnotationFileFor(qualifiedTypeName);
+		}
+	}
+	
+	/**
+	 * The packages of one jar, as slash separated names.
+	 */
+	static final class Packages {
+		final Set<String> all;
+		final Set<String> withClasses;
+		
+		Packages(Set<String> all, Set<String> withClasses) {
+			this.all = Collections.unmodifiableSet(all);
+			this.withClasses = Collections.unmodifiableSet(withClasses);
+		}
+	}
+	
+	/**
+	 * Which packages the JDK's module image contains, and in which modules.
+	 */
+	static final class JdkImage {
+		final java.nio.file.FileSystem fs;
+		final List<String> modules;
+		final Map<String, List<String>> packages;
+		
+		JdkImage(java.nio.file.FileSystem fs, List<String> modules, Map<String, List<String>> packages) {
+			this.fs = fs;
+			this.modules = modules;
+			this.packages = packages;
+		}
+	}
+}
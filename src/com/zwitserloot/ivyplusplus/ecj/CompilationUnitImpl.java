@@ -11,12 +11,17 @@
  **********************************************************************/
 package com.zwitserloot.ivyplusplus.ecj;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.StringTokenizer;
 
 import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
@@ -42,6 +47,9 @@ public class CompilationUnitImpl implements ICompilationUnit {
 	/** the name of the package , e.g. {java, lang} */
 	private char[][] _packageName;
 	
+	/** the decoded contents; ecj asks more than once when annotation processors run */
+	private SoftReference<char[]> _contents;
+	
 	public CompilationUnitImpl(SourceFile sourceFile) {
 		Assure.notNull("sourceFile", sourceFile);
 		this._sourceFile = sourceFile;
@@ -78,26 +86,50 @@ public class CompilationUnitImpl implements ICompilationUnit {
 	}
 	
 	public final char[] getContents() {
-		String filename = new String(this._fileName);
-		File sourceFile = new File(this._sourceFile.getSourceFolder(), filename);
-		
-		StringBuffer result = new StringBuffer();
+		char[] contents = this._contents == null ? null : this._contents.get();
+		if (contents != null) return contents;
 		
-		try (
-			FileInputStream rawIn = new FileInputStream(sourceFile);
-			BufferedReader in = new BufferedReader(new InputStreamReader(rawIn, this._sourceFile.getEncoding()));
-		) {
-			String str;
-			while ((str = in.readLine()) != null) {
-				result.append(str);
-				result.append("\n");
-			}
-		} catch (UnsupportedEncodingException e) {
+		File sourceFile = new File(this._sourceFile.getSourceFolder(), new String(this._fileName));
+		contents = readContents(sourceFile, this._sourceFile.getEncoding());
+		this._contents = new SoftReference<char[]>(contents);
+		return contents;
+	}
+	
+	/**
+	 * Reads and decodes the given file in one go. The content is returned exactly as is, including line endings, so that problem offsets match
+	 * the file on disk; only a UTF-8 byte order mark is stripped (as ecj itself does). Malformed input is replaced, not rejected.
+	 */
+	public static char[] readContents(File sourceFile, String encoding) {
+		Charset charset;
+		try {
+			charset = Charset.forName(encoding);
+		} catch (IllegalArgumentException e) {
 			throw new IllegalStateException("Unable to read compilation content (encoding)", e);
+		}
+		
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(sourceFile.toPath());
 		} catch (IOException e) {
 			throw new IllegalStateException("Unable to read compilation content (I/O)", e);
 		}
-		return result.toString().toCharArray();
+		
+		int offset = 0;
+		if (charset.equals(StandardCharsets.UTF_8) && bytes.length >= 3 && bytes[0] == (byte) 0xEF && bytes[1] == (byte) 0xBB && bytes[2] == (byte) 0xBF) offset = 3;
+		
+		CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer decoded;
+		try {
+			decoded = decoder.decode(ByteBuffer.wrap(bytes, offset, bytes.length - offset));
+		} catch (CharacterCodingException e) {
+			// Can't happen with REPLACE.
+			throw new IllegalStateException("Unable to read compilation content (encoding)", e);
+		}
+		
+		if (decoded.hasArray() && decoded.arrayOffset() == 0 && decoded.position() == 0 && decoded.remaining() == decoded.array().length) return decoded.array();
+		char[] contents = new char[decoded.remaining()];
+		decoded.get(contents);
+		return contents;
 	}
 	
 	public SourceFile getSourceFile() {
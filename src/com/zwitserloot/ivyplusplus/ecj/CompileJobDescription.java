@@ -36,4 +36,11 @@ public interface CompileJobDescription {
 	SourceFile[] getSourceFiles();
 	
 	Classpath[] getClasspaths();
+	
+	/**
+	 * Returns whether ecj may parse, resolve and generate code for multiple compilation units concurrently.
+	 * 
+	 * @return {@code true} if ecj should use its multi-threaded compile path.
+	 */
+	boolean isParallel();
 }
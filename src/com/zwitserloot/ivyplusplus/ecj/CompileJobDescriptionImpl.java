@@ -27,6 +27,7 @@ public class CompileJobDescriptionImpl implements CompileJobDescription {
 	private Classpath[] _classpaths;
 	private Map<String, String> _compilerOptions;
 	private SourceFile[] _sourceFiles;
+	private boolean _parallel;
 	
 	public CompileJobDescriptionImpl() {}
 	
@@ -51,6 +52,14 @@ public class CompileJobDescriptionImpl implements CompileJobDescription {
 		return this._sourceFiles;
 	}
 	
+	public boolean isParallel() {
+		return this._parallel;
+	}
+	
+	public void setParallel(boolean parallel) {
+		this._parallel = parallel;
+	}
+	
 	public void setClasspaths(Classpath[] classpaths) {
 		Assure.notNull("classpaths", classpaths);
 		this._classpaths = classpaths;
@@ -102,6 +111,8 @@ public class CompileJobDescriptionImpl implements CompileJobDescription {
 		}
 		buffer.append(Arrays.toString(this._sourceFiles));
 		buffer.append("}");
+		buffer.append(", _parallel: ");
+		buffer.append(this._parallel);
 		buffer.append("]");
 		return buffer.toString();
 	}
@@ -0,0 +1,46 @@
+package com.zwitserloot.ivyplusplus.ecj;
+
+import org.eclipse.jdt.internal.compiler.impl.CompilerStats;
+
+/**
+ * Accumulates how long the phases of one or more ecj compile runs took.
+ * 
+ * ecj counts writing class files as part of code generation; here it is reported separately, and subtracted from code generation.
+ * In parallel mode the phases overlap, so they don't add up to the total.
+ */
+public class CompileTimings {
+	private long parse, resolve, analyze, generate, annotationProcessing, write, total, lines;
+	private int runs;
+	
+	/**
+	 * @param stats The statistics ecj gathered for a compile run.
+	 * @param annotationProcessingNanos Time spent in annotation processors during that run.
+	 * @param writeNanos Time spent writing class files during that run.
+	 */
+	public synchronized void add(CompilerStats stats, long annotationProcessingNanos, long writeNanos) {
+		long writeMillis = writeNanos / 1000000L;
+		parse += stats.parseTime;
+		resolve += stats.resolveTime;
+		analyze += stats.analyzeTime;
+		generate += Math.max(0, stats.generateTime - writeMillis);
+		annotationProcessing += annotationProcessingNanos / 1000000L;
+		write += writeMillis;
+		total += stats.elapsedTime();
+		lines += stats.lineCount;
+		runs++;
+	}
+	
+	public synchronized String report(boolean parallel) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("parse ").append(parse).append("ms");
+		sb.append(", resolve ").append(resolve).append("ms");
+		sb.append(", analyze ").append(analyze).append("ms");
+		sb.append(", annotation processing ").append(annotationProcessing).append("ms");
+		sb.append(", generate ").append(generate).append("ms");
+		sb.append(", write ").append(write).append("ms");
+		sb.append(" - total ").append(total).append("ms for ").append(lines).append(" lines");
+		if (runs > 1) sb.append(" in ").append(runs).append(" rounds");
+		if (parallel) sb.append(" (parallel; phases overlap)");
+		return sb.toString();
+	}
+}
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
@@ -44,6 +45,15 @@ public class CompilerRequestorImpl implements ICompilerRequestor {
 	
 	/** Collection of class files which have been compiled */
 	private Map<String, File> _compiledClassFiles;
+	
+	/** If set, every result is recorded here so that the next compile can be incremental. */
+	private IncrementalState _incrementalState;
+	
+	/** Receives the class files; if not set, they are written to the destination folder of the source file. */
+	private ClassOutput _classOutput;
+	
+	/** Time spent writing class files to disc, in nanoseconds. */
+	private long _writeTime;
 
 	public CompilerRequestorImpl() {
 		this._compilationSuccessful = true;
@@ -51,6 +61,14 @@ public class CompilerRequestorImpl implements ICompilerRequestor {
 		this._compiledClassFiles = new Hashtable<String, File>();
 	}
 	
+	public void setIncrementalState(IncrementalState incrementalState) {
+		this._incrementalState = incrementalState;
+	}
+	
+	public void setClassOutput(ClassOutput classOutput) {
+		this._classOutput = classOutput;
+	}
+	
 	public Map<String, File> getCompiledClassFiles() {
 		return Collections.unmodifiableMap(this._compiledClassFiles);
 	}
@@ -58,8 +76,9 @@ public class CompilerRequestorImpl implements ICompilerRequestor {
 	public void acceptResult(CompilationResult result) {
 		CompilationUnitImpl compilationUnitImpl = (CompilationUnitImpl) result.getCompilationUnit();
 		SourceFile sourceFile = compilationUnitImpl.getSourceFile();
-		File destinationDirectory = sourceFile.getDestinationFolder();
+		if (this._classOutput == null) this._classOutput = new ClassFileWriter(sourceFile.getDestinationFolder(), false);
 		
+		Map<String, byte[]> written = this._incrementalState == null ? null : new HashMap<String, byte[]>();
 		this._compilationSuccessful = false;
 		if (!result.hasErrors()) {
 			this._compilationSuccessful = true;
@@ -72,17 +91,23 @@ public class CompilerRequestorImpl implements ICompilerRequestor {
 					if (j < compoundName.length - 1) classFileName.append('/');
 				}
 				classFileName.append(".class");
-				File classFile = new File(destinationDirectory, classFileName.toString());
-				File classDir = classFile.getParentFile();
-				if (!classDir.exists()) classDir.mkdirs();
-				writeFile(classFile, classFile2.getBytes());
-				this._compiledClassFiles.put(classFileName.toString(), classFile);
+				long writeStart = System.nanoTime();
+				File classFile = this._classOutput.write(classFileName.toString(), classFile2.getBytes());
+				this._writeTime += System.nanoTime() - writeStart;
+				if (classFile != null) this._compiledClassFiles.put(classFileName.toString(), classFile);
+				if (written != null) written.put(classFileName.toString(), classFile2.getBytes());
 			}
 		}
 		
+		if (written != null) this._incrementalState.record(sourceFile, result, written);
+		
 		if (result.getAllProblems() != null) this._categorizedProblems.addAll(Arrays.asList(result.getAllProblems()));
 	}
 	
+	public long getWriteTime() {
+		return this._writeTime;
+	}
+	
 	public boolean isCompilationSuccessful() {
 		return this._compilationSuccessful;
 	}
@@ -1,24 +1,24 @@
 package com.zwitserloot.ivyplusplus.ecj;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.lang.reflect.Field;
-import java.nio.channels.FileChannel;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.tools.StandardLocation;
 
@@ -30,6 +30,8 @@ import org.apache.tools.ant.types.Path;
 import org.apache.tools.ant.types.Resource;
 import org.apache.tools.ant.types.resources.FileResource;
 import org.eclipse.jdt.core.compiler.CategorizedProblem;
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.core.compiler.IProblem;
 import org.eclipse.jdt.internal.compiler.Compiler;
 import org.eclipse.jdt.internal.compiler.DefaultErrorHandlingPolicies;
 import org.eclipse.jdt.internal.compiler.IErrorHandlingPolicy;
@@ -38,14 +40,16 @@ import org.eclipse.jdt.internal.compiler.apt.dispatch.BaseAnnotationProcessorMan
 import org.eclipse.jdt.internal.compiler.apt.dispatch.BatchAnnotationProcessorManager;
 import org.eclipse.jdt.internal.compiler.apt.dispatch.BatchProcessingEnvImpl;
 import org.eclipse.jdt.internal.compiler.apt.util.EclipseFileManager;
+import org.eclipse.jdt.internal.compiler.ast.CompilationUnitDeclaration;
 import org.eclipse.jdt.internal.compiler.batch.FileSystem;
 import org.eclipse.jdt.internal.compiler.batch.FileSystem.Classpath;
 import org.eclipse.jdt.internal.compiler.batch.Main;
 import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
-import org.eclipse.jdt.internal.compiler.env.IModuleAwareNameEnvironment;
 import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
 import org.eclipse.jdt.internal.compiler.impl.CompilerOptions;
+import org.eclipse.jdt.internal.compiler.lookup.ReferenceBinding;
 import org.eclipse.jdt.internal.compiler.problem.DefaultProblemFactory;
+import org.eclipse.jdt.internal.compiler.tool.EclipseCompilerImpl;
 import org.eclipse.jdt.internal.compiler.util.Util;
 
 public class EcjAdapter implements CompilerAdapter {
@@ -60,6 +64,19 @@ public class EcjAdapter implements CompilerAdapter {
 	private boolean includeSystemBootclasspath;
 	private Set<String> procClasses;
 	private Set<File> procJars;
+	private EcjCompileService compileService;
+	private final List<Object> leased = new ArrayList<Object>();
+	private File[] incrementalSources;
+	private IncrementalState incrementalState;
+	private boolean parallel;
+	private boolean reportTimings;
+	private CompileTimings timings;
+	private boolean skipIdenticalClassFiles;
+	private ClassFileWriter classFileWriter;
+	private ClassOutput classOutput;
+	private ClasspathIndex classpathIndex;
+	private ProblemReport problemReport;
+	private int compiledCount;
 	
 	public void setJavac(Javac javac) {
 		this.javac = javac;
@@ -67,99 +84,45 @@ public class EcjAdapter implements CompilerAdapter {
 	
 	public boolean execute() throws BuildException {
 		CompileJobDescriptionImpl description = new CompileJobDescriptionImpl();
-		SourceFile[] sourceFiles = getSourceFilesToCompile();
-		description.setSourceFiles(sourceFiles);
-		description.setClasspaths(createClasspaths());
 		String compilerOptionsFileName = extractJavacCompilerArg(COMPILER_OPTIONS_FILE, null);
 		String defaultCompilerOptionsFileName = extractJavacCompilerArg(DEFAULT_COMPILER_OPTIONS_FILE, null);
 		Map<String, String> compilerOptions = CompilerOptionsProvider.getCompilerOptions(javac, compilerOptionsFileName, defaultCompilerOptionsFileName);
 		description.setCompilerOptions(compilerOptions);
-		
-		CompileJobResult compileJobResult = compile(description);
-		
-		CategorizedProblem[] categorizedProblems = compileJobResult.getCategorizedProblems();
-		
-		// Buffer for messages
-		StringBuilder builder = new StringBuilder();
-		
-		boolean hasErrors = false;
-		for (int i = 0; i < categorizedProblems.length; i++) {
-			CategorizedProblem categorizedProblem = categorizedProblems[i];
-			if (categorizedProblem.isError() || (categorizedProblem.isWarning() && !javac.getNowarn())) {
-				String fileName = String.valueOf(categorizedProblem.getOriginatingFileName());
-				for (SourceFile sourceFile : sourceFiles) {
-					if (fileName.equals(sourceFile.getSourceFileName())) {
-						Object[] args = new Object[7];
-						args[0] = Integer.valueOf(i + 1);
-						args[1] = categorizedProblem.isError() ? "ERROR" : "WARNING";
-						args[2] = sourceFile.getSourceFile().getAbsolutePath();
-						args[3] = Integer.valueOf(categorizedProblem.getSourceLineNumber());
-						String[] problematicLine = readProblematicLine(sourceFile, categorizedProblem);
-						args[4] = problematicLine[0];
-						args[5] = problematicLine[1];
-						args[6] = categorizedProblem.getMessage();
-						builder.append(String.format(COMPILE_PROBLEM_MESSAGE, args));
-						if (i + 1 == categorizedProblems.length) builder.append("----------\n");
-						if (categorizedProblem.isError()) hasErrors = true;
-					}
-				}
-			}
-		}
-		
-		if (builder.length() > 0) {
-			if (hasErrors) {
-				javac.getProject().log("Compile errors: \n" + builder.toString(), Project.MSG_ERR);
+		// ecj.useMultiThreading is the old, JVM-wide way of turning this on.
+		description.setParallel(parallel || Boolean.getBoolean("ecj.useMultiThreading"));
+		timings = new CompileTimings();
+		if (javac.getDestdir() == null) throw new BuildException("dest path not set");
+		classFileWriter = new ClassFileWriter(javac.getDestdir(), skipIdenticalClassFiles);
+		if (classOutput != null && (incrementalSources != null || skipIdenticalClassFiles)) throw new BuildException("incremental and skipIdenticalClassFiles require class files to be written to the destination directory");
+		
+		SourceFile[] sourceFiles;
+		CompileJobResult compileJobResult;
+		try {
+			if (incrementalSources == null) {
+				sourceFiles = getSourceFilesToCompile(javac.getFileList());
+				description.setSourceFiles(sourceFiles);
+				description.setClasspaths(createClasspaths());
+				compileJobResult = compile(description);
 			} else {
-				if (!javac.getNowarn()) {
-					javac.getProject().log("Compile warnings: \n" + builder.toString(), Project.MSG_WARN);
-				}
+				List<SourceFile> compiled = new ArrayList<SourceFile>();
+				compileJobResult = compileIncrementally(description, compiled);
+				sourceFiles = compiled.toArray(new SourceFile[0]);
 			}
+			compiledCount = sourceFiles.length;
+		} finally {
+			if (compileService != null) compileService.release(leased);
+			leased.clear();
 		}
+		if (classFileWriter.getSkipped() > 0) javac.log(classFileWriter.getSkipped() + " class files were unchanged and have not been rewritten", Project.MSG_VERBOSE);
+		javac.log("Compile timings for " + javac.getDestdir() + ": " + timings.report(description.isParallel()), reportTimings ? Project.MSG_INFO : Project.MSG_VERBOSE);
 		
-		// if the destination directory has been specified for the javac task we might need
-		// to copy the generated class files
-		if (compileJobResult.succeeded() && (javac.getDestdir() != null)) {
-			File destdir = getCanonicalFile(javac.getDestdir());
-			try {
-				cloneClasses(destdir, compileJobResult.getCompiledClassFiles());
-			} catch (IOException e) {
-				throw new BuildException(e);
-			}
-		}
+		boolean hasErrors = reportProblems(compileJobResult.getCategorizedProblems(), sourceFiles);
 		
 		// throw Exception if compilation was not successful
 		if (!compileJobResult.succeeded() || hasErrors) throw new BuildException("Compilation not successful");
 		return true;
 	}
 	
-	private void cloneClasses(File destDir, Map<String, File> compiledClasses) throws IOException {
-		if (!destDir.isAbsolute()) destDir = destDir.getAbsoluteFile();
-		for (Map.Entry<String, File> entry : compiledClasses.entrySet()) {
-			File destFile = getCanonicalFile(new File(destDir, entry.getKey()));
-			destFile.getParentFile().mkdirs();
-			if (!destFile.equals(entry.getValue())) copy(entry.getValue(), destFile);
-		}
-	}
-	
-	public static final void copy(File source, File dest) throws IOException {
-		Assure.isFile("source", source);
-		Assure.notNull("to", dest);
-		FileInputStream in = null;
-		FileOutputStream out = null;
-		FileChannel inC = null;
-		FileChannel outC = null;
-		
-		in = new FileInputStream(source);
-		out = new FileOutputStream(dest);
-		inC = in.getChannel();
-		outC = out.getChannel();
-		inC.transferTo(0, inC.size(), outC);
-		inC.close();
-		outC.close();
-		in.close();
-		out.close();
-	}
-	
 	private static final File getCanonicalFile(File file) {
 		Assure.notNull("file", file);
 		try {
@@ -169,40 +132,78 @@ public class EcjAdapter implements CompilerAdapter {
 		}
 	}
 	
-	private String[] readProblematicLine(SourceFile sourceFile, CategorizedProblem categorizedProblem) {
-		Assure.notNull("sourceFile", sourceFile);
-		Assure.notNull("categorizedProblem", categorizedProblem);
-		
-		int lineNumber = categorizedProblem.getSourceLineNumber();
-		int sourceStart = categorizedProblem.getSourceStart();
-		int sourceEnd = categorizedProblem.getSourceEnd();
+	/**
+	 * Logs the problems, grouped per source file and one file at a time, and adds them to the problem report if there is one.
+	 * Each file is read only once, no matter how many problems it has.
+	 * 
+	 * @return {@code true} if any of the problems is an error.
+	 */
+	private boolean reportProblems(CategorizedProblem[] categorizedProblems, SourceFile[] sourceFiles) {
+		Map<String, SourceFile> byName = new HashMap<String, SourceFile>();
+		for (SourceFile sourceFile : sourceFiles) byName.put(sourceFile.getSourceFileName(), sourceFile);
+		
+		// Problem numbers are their position in the list ecj reported, as they've always been.
+		Map<SourceFile, List<Integer>> perFile = new LinkedHashMap<SourceFile, List<Integer>>();
+		boolean hasErrors = false;
+		for (int i = 0; i < categorizedProblems.length; i++) {
+			CategorizedProblem categorizedProblem = categorizedProblems[i];
+			if (!categorizedProblem.isError() && !categorizedProblem.isWarning()) continue;
+			SourceFile sourceFile = byName.get(String.valueOf(categorizedProblem.getOriginatingFileName()));
+			if (sourceFile == null) continue;
+			if (categorizedProblem.isError()) hasErrors = true;
+			List<Integer> list = perFile.get(sourceFile);
+			if (list == null) perFile.put(sourceFile, list = new ArrayList<Integer>());
+			list.add(i);
+		}
 		
-		try {
-			// Open the file that is the first command line parameter
-			FileInputStream fstream = new FileInputStream(sourceFile.getSourceFile());
-			DataInputStream in = new DataInputStream(fstream);
-			BufferedReader br = new BufferedReader(new InputStreamReader(in));
-			int lineStart = 0;
-			String strLine = "";
-			// Read File Line By Line
-			for (int i = 0; i < lineNumber; i++) {
-				String newLine = br.readLine();
-				
-				lineStart = lineStart + strLine.length();
-				if (i + 1 != lineNumber) lineStart = lineStart + 1;
-				strLine = newLine;
+		boolean log = hasErrors || !javac.getNowarn();
+		int level = hasErrors ? Project.MSG_ERR : Project.MSG_WARN;
+		boolean logged = false;
+		for (Map.Entry<SourceFile, List<Integer>> e : perFile.entrySet()) {
+			SourceFile sourceFile = e.getKey();
+			LineIndex lines = null;
+			char[] contents = null;
+			try {
+				contents = CompilationUnitImpl.readContents(sourceFile.getSourceFile(), sourceFile.getEncoding());
+				lines = new LineIndex(contents);
+			} catch (IllegalStateException ex) {
+				// Just means we can't show the offending line.
 			}
-			in.close();
-			StringBuilder underscoreLine = new StringBuilder();
-			for (int i = lineStart; i < sourceStart; i++) {
-				if (strLine.charAt(i - lineStart) == '\t') underscoreLine.append('\t');
-				else underscoreLine.append(' ');
+			
+			StringBuilder builder = new StringBuilder();
+			for (int i : e.getValue()) {
+				CategorizedProblem categorizedProblem = categorizedProblems[i];
+				int sourceStart = categorizedProblem.getSourceStart();
+				boolean located = lines != null && sourceStart >= 0 && sourceStart <= contents.length;
+				int lineStart = located ? lines.lineStart(sourceStart) : -1;
+				if (problemReport != null) {
+					int column = located ? sourceStart - lineStart + 1 : 0;
+					problemReport.add(sourceFile.getSourceFile(), categorizedProblem.getSourceLineNumber(), column, categorizedProblem.isError(), categorizedProblem.getMessage(), categorizedProblem.getID() & IProblem.IgnoreCategoriesMask);
+				}
+				if (!log || (categorizedProblem.isWarning() && javac.getNowarn())) continue;
+				
+				String[] problematicLine = located ? problematicLine(contents, lineStart, lines.lineEnd(lineStart), categorizedProblem) : new String[] {"", ""};
+				builder.append(String.format(COMPILE_PROBLEM_MESSAGE, i + 1, categorizedProblem.isError() ? "ERROR" : "WARNING", sourceFile.getSourceFile().getAbsolutePath(),
+					categorizedProblem.getSourceLineNumber(), problematicLine[0], problematicLine[1], categorizedProblem.getMessage()));
 			}
-			for (int i = sourceStart; i <= sourceEnd; i++) underscoreLine.append('^');
-			return new String[] {strLine, underscoreLine.toString()};
-		} catch (Exception e) {// Catch exception if any
-			return new String[] {"", ""};
+			if (builder.length() == 0) continue;
+			if (!logged) javac.getProject().log(hasErrors ? "Compile errors: " : "Compile warnings: ", level);
+			logged = true;
+			builder.setLength(builder.length() - 1);
+			javac.getProject().log(builder.toString(), level);
 		}
+		if (logged) javac.getProject().log("----------", level);
+		return hasErrors;
+	}
+	
+	private static String[] problematicLine(char[] contents, int lineStart, int lineEnd, CategorizedProblem categorizedProblem) {
+		int sourceStart = categorizedProblem.getSourceStart();
+		int sourceEnd = categorizedProblem.getSourceEnd();
+		StringBuilder underscoreLine = new StringBuilder();
+		for (int i = lineStart; i < sourceStart; i++) underscoreLine.append(contents[i] == '\t' ? '\t' : ' ');
+		int markEnd = Math.max(sourceStart, Math.min(sourceEnd, lineEnd - 1));
+		for (int i = sourceStart; i <= markEnd; i++) underscoreLine.append('^');
+		return new String[] {new String(contents, lineStart, lineEnd - lineStart), underscoreLine.toString()};
 	}
 	
 	private String extractJavacCompilerArg(String argumentName, String defaultValue) {
@@ -225,12 +226,10 @@ public class EcjAdapter implements CompilerAdapter {
 		return defaultValue;
 	}
 	
-	private SourceFile[] getSourceFilesToCompile() throws BuildException {
+	private SourceFile[] getSourceFilesToCompile(File[] fileList) throws BuildException {
 		File defaultDestinationFolder = javac.getDestdir();
 		List<SourceFile> sourceFiles = new ArrayList<SourceFile>();
 		
-		File[] fileList = javac.getFileList();
-		
 		for (File file : fileList) {
 			if (!hasSourceFolder(file)) {
 				// the user has restricted the source folders for the compilation.
@@ -265,20 +264,28 @@ public class EcjAdapter implements CompilerAdapter {
 			if (defaultBc != null) {
 				for (String x : defaultBc.split(File.pathSeparator)) {
 					File f = new File(x);
-					if (f.exists()) classpathList.add(FileSystem.getClasspath(x, "UTF-8", null));
+					if (f.exists()) addClasspath(classpathList, f);
 				}
 			} else {
-				org.eclipse.jdt.internal.compiler.util.Util.collectVMBootclasspath(classpathList, Util.getJavaHome());
+				// Also used when a release is set; the release only picks compliance levels (see CompilerOptionsProvider).
+				Classpath system = classpathIndex == null ? null : classpathIndex.createSystemClasspath();
+				if (system != null) classpathList.add(system);
+				else org.eclipse.jdt.internal.compiler.util.Util.collectVMBootclasspath(classpathList, Util.getJavaHome());
 			}
 		}
 		
+		if (incrementalSources != null) {
+			// The classes compiled by previous runs must be visible, as only part of the sources are recompiled.
+			classpathList.add(FileSystem.getClasspath(getCanonicalFile(javac.getDestdir()).getPath(), "UTF-8", null));
+		}
+		
 		if (javac.getClasspath() != null) {
 			Iterator<? extends Resource> iterator = javac.getClasspath().iterator();
 			while (iterator.hasNext()) {
 				FileResource fileResource = iterator.next().as(FileResource.class);
 				if (fileResource == null) continue;
 				File classesFile = fileResource.getFile();
-				if (classesFile.exists()) classpathList.add(FileSystem.getClasspath(classesFile.toString(), "UTF-8", null));
+				if (classesFile.exists()) addClasspath(classpathList, classesFile);
 			}
 		}
 		
@@ -293,8 +300,22 @@ public class EcjAdapter implements CompilerAdapter {
 		for (Iterator<? extends Resource> iterator = bootClasspath.iterator(); iterator.hasNext();) {
 			FileResource fileResource = iterator.next().as(FileResource.class);
 			if (fileResource == null) continue;
-			if (fileResource.getFile().exists()) classpaths.add(FileSystem.getClasspath(fileResource.getFile().toString(), "UTF-8", null));
+			if (fileResource.getFile().exists()) addClasspath(classpaths, fileResource.getFile());
+		}
+	}
+	
+	private void addClasspath(List<Classpath> classpaths, File file) {
+		if (compileService != null && file.isFile()) {
+			Classpath cp = compileService.acquire(file, classpathIndex);
+			if (cp != null) {
+				leased.add(cp);
+				classpaths.add(cp);
+			}
+			return;
 		}
+		
+		if (classpathIndex != null) classpaths.add(classpathIndex.createClasspath(file));
+		else classpaths.add(FileSystem.getClasspath(file.toString(), "UTF-8", null));
 	}
 	
 	private String getDefaultEncoding() {
@@ -329,34 +350,59 @@ public class EcjAdapter implements CompilerAdapter {
 	}
 	
 	static class MyFileSystem extends FileSystem {
-		protected MyFileSystem(Classpath[] paths) {
+		/** Names of types that aren't on the classpath; {@code null} if misses are not remembered. */
+		private final Set<String> missing;
+		
+		protected MyFileSystem(Classpath[] paths, boolean cacheMisses) {
 			super(paths, new String[0], false);
+			this.missing = cacheMisses ? Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()) : null;
 		}
 		
 		@Override public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName, char[] moduleName) {
-			return super.findType(typeName, packageName, moduleName);
+			if (missing == null || typeName == null) return super.findType(typeName, packageName, moduleName);
+			String key = missKey(CharOperation.concatWith(packageName, typeName, '.'), moduleName);
+			if (missing.contains(key)) return null;
+			return remember(key, super.findType(typeName, packageName, moduleName));
 		}
 		
 		@Override public NameEnvironmentAnswer findType(char[][] compoundName, char[] moduleName) {
-			return super.findType(compoundName, moduleName);
+			if (missing == null || compoundName == null) return super.findType(compoundName, moduleName);
+			String key = missKey(CharOperation.concatWith(compoundName, '.'), moduleName);
+			if (missing.contains(key)) return null;
+			return remember(key, super.findType(compoundName, moduleName));
+		}
+		
+		private NameEnvironmentAnswer remember(String key, NameEnvironmentAnswer answer) {
+			if (answer == null) missing.add(key);
+			return answer;
+		}
+		
+		private static String missKey(char[] qualifiedName, char[] moduleName) {
+			return moduleName == null ? new String(qualifiedName) : new String(qualifiedName) + "@" + new String(moduleName);
+		}
+		
+		@Override public void cleanup() {
+			super.cleanup();
+			if (missing != null) missing.clear();
 		}
 	}
 	
 	public CompileJobResult compile(CompileJobDescription description) {
-		IModuleAwareNameEnvironment nameEnvironment = new MyFileSystem(description.getClasspaths());
+		MyFileSystem nameEnvironment = new MyFileSystem(description.getClasspaths(), classpathIndex != null);
 		Map<String, String> compilerOptionsMap = description.getCompilerOptions();
 		ICompilationUnit[] sources = getCompilationUnits(description.getSourceFiles());
 		IErrorHandlingPolicy policy = DefaultErrorHandlingPolicies.proceedWithAllProblems();
 		IProblemFactory problemFactory = new DefaultProblemFactory(Locale.getDefault());
 		CompilerRequestorImpl requestor = new CompilerRequestorImpl();
+		requestor.setIncrementalState(incrementalState);
+		requestor.setClassOutput(classOutput == null ? classFileWriter : classOutput);
 		CompilerOptions compilerOptions = new CompilerOptions(compilerOptionsMap);
 		compilerOptions.storeAnnotations = true;
+		if (incrementalState != null) compilerOptions.produceReferenceInfo = true;
 		Compiler compiler = new Compiler(nameEnvironment, policy, compilerOptions, requestor, problemFactory);
 		
-		if (Boolean.getBoolean("ecj.useMultiThreading")) compiler.useSingleThread = false;
-		BatchAnnotationProcessorManager aptManager = new BatchAnnotationProcessorManager();
-		Main m = makeDummyMain();
-		m.batchCompiler = compiler;
+		if (description.isParallel()) compiler.useSingleThread = false;
+		TimedAnnotationProcessorManager aptManager = new TimedAnnotationProcessorManager();
 		List<String> aptArgs = new ArrayList<String>();
 		if (!procJars.isEmpty()) {
 			aptArgs.add("-processorpath");
@@ -377,7 +423,10 @@ public class EcjAdapter implements CompilerAdapter {
 			aptArgs.add(sb.toString());
 		}
 		
+		Main m = makeDummyMain(aptArgs);
+		m.batchCompiler = compiler;
 		aptManager.configure(m, aptArgs.toArray(new String[0]));
+		if (compileService != null && !procJars.isEmpty()) reuseProcessorLoader(aptManager);
 		compiler.annotationProcessorManager = aptManager;
 		
 		EclipseFileManager filer = null;
@@ -408,7 +457,13 @@ public class EcjAdapter implements CompilerAdapter {
 			}
 		}
 		
-		compiler.compile(sources);
+		try {
+			compiler.compile(sources);
+		} finally {
+			// Entries handed out by the compile service stay open for the next compile; the service closes them.
+			for (Classpath cp : description.getClasspaths()) if (!leased.contains(cp)) cp.reset();
+		}
+		if (timings != null) timings.add(compiler.stats, aptManager.time, requestor.getWriteTime());
 		CompileJobResultImpl result = new CompileJobResultImpl();
 		result.setSucceeded(requestor.isCompilationSuccessful());
 		result.setCategorizedProblems(requestor.getCategorizedProblems());
@@ -416,7 +471,156 @@ public class EcjAdapter implements CompilerAdapter {
 		return result;
 	}
 	
-	private Main makeDummyMain() {
+	private CompileJobResult compileIncrementally(CompileJobDescriptionImpl description, List<SourceFile> compiled) {
+		File destdir = getCanonicalFile(javac.getDestdir());
+		SourceFile[] allSources = getSourceFilesToCompile(incrementalSources);
+		Map<String, SourceFile> byKey = new HashMap<String, SourceFile>();
+		for (SourceFile sf : allSources) byKey.put(IncrementalState.keyOf(sf), sf);
+		
+		List<String> settings = new ArrayList<String>();
+		for (Map.Entry<String, String> e : new TreeMap<String, String>(description.getCompilerOptions()).entrySet()) settings.add(e.getKey() + "=" + e.getValue());
+		settings.add("processors=" + procClasses);
+		settings.add("java.home=" + System.getProperty("java.home") + "; java.version=" + System.getProperty("java.version"));
+		List<File> keyFiles = new ArrayList<File>(procJars);
+		if (javac.getBootclasspath() != null) for (String entry : javac.getBootclasspath().list()) keyFiles.add(new File(entry));
+		if (javac.getClasspath() != null) for (String entry : javac.getClasspath().list()) {
+			File f = new File(entry);
+			if (!getCanonicalFile(f).equals(destdir)) keyFiles.add(f);
+		}
+		
+		try {
+			incrementalState = IncrementalState.load(destdir, IncrementalState.computeKey(settings, keyFiles));
+		} catch (IOException e) {
+			throw new BuildException("Can't read incremental compile state " + IncrementalState.stateFileFor(destdir), e);
+		}
+		
+		if (skipIdenticalClassFiles) {
+			File stash = new File(destdir.getParentFile(), destdir.getName() + ".ecjstash");
+			incrementalState.setStash(stash);
+			classFileWriter.setStash(stash);
+		}
+		
+		Set<String> changedTypes = new HashSet<String>();
+		if (incrementalState.isReusable()) {
+			changedTypes.addAll(incrementalState.forgetDeleted(byKey.keySet()));
+		} else {
+			javac.log("No usable incremental compile state; compiling everything", Project.MSG_VERBOSE);
+			incrementalState.forgetAll();
+		}
+		
+		description.setClasspaths(createClasspaths());
+		Set<SourceFile> toCompile = new LinkedHashSet<SourceFile>(incrementalState.findStale(allSources));
+		Set<SourceFile> previousRound = Collections.emptySet();
+		boolean succeeded = true;
+		Map<String, List<CategorizedProblem>> problems = new LinkedHashMap<String, List<CategorizedProblem>>();
+		Map<String, File> classFiles = new HashMap<String, File>();
+		
+		try {
+			while (true) {
+				// Sources compiled in the same round as the type that changed already saw the new version of it.
+				for (String key : incrementalState.dependentsOf(changedTypes)) {
+					SourceFile sf = byKey.get(key);
+					if (sf != null && !previousRound.contains(sf)) toCompile.add(sf);
+				}
+				changedTypes.clear();
+				if (toCompile.isEmpty()) break;
+				
+				javac.log("Compiling " + toCompile.size() + " of " + allSources.length + " source file" + (allSources.length == 1 ? "" : "s") + " to " + destdir + (compiled.isEmpty() ? "" : " (dependents)"));
+				Map<SourceFile, Map<String, String>> before = new HashMap<SourceFile, Map<String, String>>();
+				List<SourceFile> round = new ArrayList<SourceFile>();
+				for (SourceFile sf : toCompile) {
+					before.put(sf, incrementalState.forget(sf));
+					if (sf.getSourceFileName().endsWith("package-info.java")) round.add(0, sf);
+					else round.add(sf);
+				}
+				if (javac.getListfiles()) for (SourceFile sf : round) javac.log(sf.getSourceFile().getAbsolutePath());
+				description.setSourceFiles(round.toArray(new SourceFile[0]));
+				CompileJobResult result;
+				try {
+					result = compile(description);
+				} finally {
+					incrementalState.clearStash();
+				}
+				// A source compiled again in a later round reports its problems again; only keep the latest batch.
+				for (SourceFile sf : round) {
+					problems.remove(sf.getSourceFileName());
+					if (!compiled.contains(sf)) compiled.add(sf);
+				}
+				// The requestor's own success flag only reflects the last unit it saw.
+				boolean roundFailed = false;
+				for (CategorizedProblem problem : result.getCategorizedProblems()) {
+					String fileName = String.valueOf(problem.getOriginatingFileName());
+					List<CategorizedProblem> list = problems.get(fileName);
+					if (list == null) problems.put(fileName, list = new ArrayList<CategorizedProblem>());
+					list.add(problem);
+					if (problem.isError()) roundFailed = true;
+				}
+				classFiles.putAll(result.getCompiledClassFiles());
+				
+				for (SourceFile sf : round) changedTypes.addAll(incrementalState.changedTypes(sf, before.get(sf)));
+				if (roundFailed) {
+					// No point chasing dependents now, but the sources in this round that did compile are recorded as up to date, so the next run
+					// wouldn't see that their API changed. The failing sources themselves are already marked stale.
+					incrementalState.markStale(incrementalState.dependentsOf(changedTypes));
+					succeeded = false;
+					break;
+				}
+				previousRound = toCompile;
+				toCompile = new LinkedHashSet<SourceFile>();
+			}
+		} finally {
+			incrementalState.clearStash();
+			try {
+				incrementalState.save();
+			} catch (IOException e) {
+				javac.log("Can't write incremental compile state " + IncrementalState.stateFileFor(destdir) + ": " + e.getMessage(), Project.MSG_WARN);
+			}
+			incrementalState = null;
+		}
+		
+		if (compiled.isEmpty()) javac.log("All " + allSources.length + " source files in " + destdir + " are up to date", Project.MSG_VERBOSE);
+		CompileJobResultImpl result = new CompileJobResultImpl();
+		result.setSucceeded(succeeded);
+		List<CategorizedProblem> allProblems = new ArrayList<CategorizedProblem>();
+		for (List<CategorizedProblem> list : problems.values()) allProblems.addAll(list);
+		result.setCategorizedProblems(allProblems.toArray(new CategorizedProblem[0]));
+		result.setCompiledClassFiles(classFiles);
+		return result;
+	}
+	
+	private static class TimedAnnotationProcessorManager extends BatchAnnotationProcessorManager {
+		long time;
+		
+		@Override public void processAnnotations(CompilationUnitDeclaration[] units, ReferenceBinding[] referenceBindings, boolean isLastRound) {
+			long start = System.nanoTime();
+			try {
+				super.processAnnotations(units, referenceBindings, isLastRound);
+			} finally {
+				time += System.nanoTime() - start;
+			}
+		}
+	}
+	
+	private void reuseProcessorLoader(BatchAnnotationProcessorManager aptManager) {
+		try {
+			Field f = BatchAnnotationProcessorManager.class.getDeclaredField("_procLoader");
+			f.setAccessible(true);
+			ClassLoader fresh = (ClassLoader) f.get(aptManager);
+			ClassLoader parent = fresh == null ? getClass().getClassLoader() : fresh.getParent();
+			ClassLoader warm = compileService.acquireProcessorLoader(procJars, parent);
+			leased.add(warm);
+			f.set(aptManager, warm);
+			if (fresh instanceof URLClassLoader) ((URLClassLoader) fresh).close();
+		} catch (NoSuchFieldException e) {
+			// we tried - maybe it's different infra; ecj will use its own loader.
+		} catch (IllegalAccessException e) {
+			// we tried - maybe it's different infra; ecj will use its own loader.
+		} catch (IOException e) {
+			// closing the unused loader failed; nothing we can do about that.
+		}
+	}
+	
+	private Main makeDummyMain(List<String> aptArgs) {
 		// Make a dummy 'Main', because the ecj code is hard-linked to it existing. This is all hackery to get around
 		// an utterly unusable API. This API has been replaced, but the replacement cannot process annotations,
 		// unless you rewrite a ton of infrastructure.
@@ -426,7 +630,15 @@ public class EcjAdapter implements CompilerAdapter {
 				// just ignore it silently.
 			}
 		});
-		return new Main(outWriter, outWriter, false, new HashMap<String, String>(), null);
+		if (classpathIndex == null) return new Main(outWriter, outWriter, false, new HashMap<String, String>(), null);
+		
+		// With the JDK indexed, don't let the processor environment walk the module image all over again; see ImagelessFileManager.
+		// ecj only uses a ready-made file manager if it gets an EclipseCompilerImpl, and then leaves handling the options to us.
+		EclipseCompilerImpl main = new EclipseCompilerImpl(outWriter, outWriter, false);
+		ImagelessFileManager fileManager = new ImagelessFileManager(null, null);
+		for (Iterator<String> it = aptArgs.iterator(); it.hasNext();) fileManager.handleOption(it.next(), it);
+		main.fileManager = fileManager;
+		return main;
 	}
 	
 	private ICompilationUnit[] getCompilationUnits(SourceFile[] sourceFiles) {
@@ -442,6 +654,61 @@ public class EcjAdapter implements CompilerAdapter {
 		this.includeSystemBootclasspath = includeSystemBootclasspath;
 	}
 	
+	/**
+	 * Switches to incremental mode: instead of compiling what javac's timestamp check selected, all of {@code sources} are considered, and only those
+	 * that changed since the last run, plus those that depend on types whose API changed as a result, are compiled.
+	 */
+	public void setIncrementalSources(File[] sources) {
+		this.incrementalSources = sources;
+	}
+	
+	/**
+	 * How many source files the last {@link #execute()} compiled; in incremental mode, 0 means everything was up to date.
+	 */
+	public int getCompiledCount() {
+		return compiledCount;
+	}
+	
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+	
+	public void setReportTimings(boolean reportTimings) {
+		this.reportTimings = reportTimings;
+	}
+	
+	/**
+	 * If set, class files whose content is identical to what's already in the destination directory are not rewritten, which keeps their timestamps intact.
+	 */
+	public void setSkipIdenticalClassFiles(boolean skipIdenticalClassFiles) {
+		this.skipIdenticalClassFiles = skipIdenticalClassFiles;
+	}
+	
+	/**
+	 * Sends class files to the given output instead of writing them to the destination directory.
+	 */
+	public void setClassOutput(ClassOutput classOutput) {
+		this.classOutput = classOutput;
+	}
+	
+	/**
+	 * Opens classpath jars through the given package index, and remembers which types could not be found during a compile.
+	 */
+	public void setClasspathIndex(ClasspathIndex classpathIndex) {
+		this.classpathIndex = classpathIndex;
+	}
+	
+	/**
+	 * Every problem ecj reports for the compiled sources is also added to this report, including warnings when {@code nowarn} is set.
+	 */
+	public void setProblemReport(ProblemReport problemReport) {
+		this.problemReport = problemReport;
+	}
+	
+	public void setCompileService(EcjCompileService compileService) {
+		this.compileService = compileService;
+	}
+	
 	public void setAnnotationProcessorEntries(Set<String> procClasses, Set<File> procJars) {
 		this.procClasses = procClasses;
 		this.procJars = procJars;
@@ -0,0 +1,246 @@
+package com.zwitserloot.ivyplusplus.ecj;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.SubBuildListener;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem.Classpath;
+
+/**
+ * Keeps opened classpath jars and annotation processor classloaders alive between ecj compile runs within the same ant project.
+ * 
+ * Only archives are cached; directories are always read fresh, because they tend to be the output of an earlier compile in the same build.
+ * Entries are keyed on path, size and last modified time, so a jar that is rewritten halfway through a build is simply opened again.
+ * The amount of cached entries is capped; the least recently used ones are closed once they are no longer in use by a running compile.
+ */
+public class EcjCompileService {
+	public static final String REFERENCE_ID = "com.zwitserloot.ivyplusplus.ecj.compileService";
+	public static final int DEFAULT_MAX_ENTRIES = 256;
+	
+	private final Project project;
+	private final Map<String, CachedClasspath> classpaths = new LinkedHashMap<String, CachedClasspath>(16, 0.75f, true);
+	private final Map<String, CachedLoader> loaders = new LinkedHashMap<String, CachedLoader>(16, 0.75f, true);
+	private final Map<Object, Entry> handedOut = new IdentityHashMap<Object, Entry>();
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+	private boolean closed;
+	
+	private EcjCompileService(Project project) {
+		this.project = project;
+	}
+	
+	/**
+	 * Returns the compile service registered with the given project, creating (and registering) it if need be.
+	 * The service closes everything it holds once the (sub)build finishes.
+	 */
+	public static EcjCompileService get(Project project) {
+		synchronized (project) {
+			Object ref = project.getReference(REFERENCE_ID);
+			if (ref instanceof EcjCompileService && !((EcjCompileService) ref).closed) return (EcjCompileService) ref;
+			final EcjCompileService service = new EcjCompileService(project);
+			project.addReference(REFERENCE_ID, service);
+			project.addBuildListener(new ShutdownListener(service));
+			return service;
+		}
+	}
+	
+	public synchronized void setMaxEntries(int maxEntries) {
+		if (maxEntries < 1) throw new BuildException("compile service size must be at least 1");
+		this.maxEntries = maxEntries;
+		evict(classpaths);
+		evict(loaders);
+	}
+	
+	/**
+	 * Returns a classpath entry for the given file, and marks it as in use until passed to {@link #release(Collection)}.
+	 * 
+	 * Returns {@code null} if the file cannot be turned into a classpath entry (for example because it does not exist).
+	 */
+	public synchronized Classpath acquire(File file) {
+		return acquire(file, null);
+	}
+	
+	/**
+	 * Like {@link #acquire(File)}, but if the jar isn't cached yet, opens it through the given package index (if not {@code null}).
+	 */
+	public synchronized Classpath acquire(File file, ClasspathIndex index) {
+		String key = key(file);
+		CachedClasspath cached = classpaths.get(key);
+		if (cached == null) {
+			Classpath cp = index == null ? FileSystem.getClasspath(file.getAbsolutePath(), "UTF-8", null) : index.createClasspath(file);
+			if (cp == null) return null;
+			try {
+				cp.initialize();
+			} catch (IOException e) {
+				return null;
+			}
+			project.log("ecj compile service: opened " + file, Project.MSG_DEBUG);
+			cached = new CachedClasspath(cp);
+			classpaths.put(key, cached);
+			handedOut.put(cp, cached);
+			evict(classpaths);
+		} else {
+			project.log("ecj compile service: reusing " + file, Project.MSG_DEBUG);
+		}
+		cached.users++;
+		return cached.classpath;
+	}
+	
+	/**
+	 * Returns a classloader that can load the annotation processors in the given jars, and marks it as in use until passed to {@link #release(Collection)}.
+	 * 
+	 * The returned loader is deliberately not a {@code URLClassLoader}; ecj closes those when it is done with them.
+	 */
+	public synchronized ClassLoader acquireProcessorLoader(Set<File> procJars, ClassLoader parent) {
+		StringBuilder sb = new StringBuilder();
+		for (File procJar : procJars) sb.append(key(procJar)).append(File.pathSeparatorChar);
+		String key = sb.toString();
+		CachedLoader cached = loaders.get(key);
+		if (cached == null) {
+			List<URL> urls = new ArrayList<URL>();
+			for (File procJar : procJars) {
+				try {
+					urls.add(procJar.toURI().toURL());
+				} catch (MalformedURLException e) {
+					throw new BuildException("Invalid annotation processor jar: " + procJar, e);
+				}
+			}
+			cached = new CachedLoader(new URLClassLoader(urls.toArray(new URL[0]), parent));
+			loaders.put(key, cached);
+			handedOut.put(cached.handle, cached);
+			evict(loaders);
+		}
+		cached.users++;
+		return cached.handle;
+	}
+	
+	/**
+	 * Marks the given classpath entries and/or processor loaders as no longer in use by the caller.
+	 * Anything not handed out by this service is ignored.
+	 */
+	public synchronized void release(Collection<?> items) {
+		for (Object item : items) {
+			Entry entry = handedOut.get(item);
+			if (entry == null) continue;
+			entry.users--;
+			if (entry.users <= 0 && entry.evicted) {
+				entry.close();
+				handedOut.remove(item);
+			}
+		}
+	}
+	
+	public synchronized void close() {
+		closed = true;
+		for (Entry entry : handedOut.values()) entry.close();
+		handedOut.clear();
+		classpaths.clear();
+		loaders.clear();
+	}
+	
+	private void evict(Map<String, ? extends Entry> cache) {
+		Iterator<? extends Entry> it = cache.values().iterator();
+		while (cache.size() > maxEntries && it.hasNext()) {
+			Entry eldest = it.next();
+			it.remove();
+			eldest.evicted = true;
+			if (eldest.users <= 0) {
+				eldest.close();
+				handedOut.remove(eldest.handle());
+			}
+		}
+	}
+	
+	private static String key(File file) {
+		File f = file.getAbsoluteFile();
+		return f.getPath() + "::" + f.length() + "::" + f.lastModified();
+	}
+	
+	private static abstract class Entry {
+		int users;
+		boolean evicted;
+		
+		abstract Object handle();
+		abstract void close();
+	}
+	
+	private static final class CachedClasspath extends Entry {
+		final Classpath classpath;
+		
+		CachedClasspath(Classpath classpath) {
+			this.classpath = classpath;
+		}
+		
+		@Override Object handle() {
+			return classpath;
+		}
+		
+		@Override void close() {
+			classpath.reset();
+		}
+	}
+	
+	private static final class CachedLoader extends Entry {
+		final URLClassLoader loader;
+		final ClassLoader handle;
+		
+		CachedLoader(URLClassLoader loader) {
+			this.loader = loader;
+			this.handle = new ClassLoader(loader) {};
+		}
+		
+		@Override Object handle() {
+			return handle;
+		}
+		
+		@Override void close() {
+			try {
+				loader.close();
+			} catch (IOException ignore) {}
+		}
+	}
+	
+	private static final class ShutdownListener implements SubBuildListener {
+		private final EcjCompileService service;
+		
+		ShutdownListener(EcjCompileService service) {
+			this.service = service;
+		}
+		
+		private void finished(BuildEvent event) {
+			if (event.getProject() != service.project) return;
+			service.close();
+			service.project.removeBuildListener(this);
+		}
+		
+		@Override public void buildFinished(BuildEvent event) {
+			finished(event);
+		}
+		
+		@Override public void subBuildFinished(BuildEvent event) {
+			finished(event);
+		}
+		
+		@Override public void buildStarted(BuildEvent event) {}
+		@Override public void subBuildStarted(BuildEvent event) {}
+		@Override public void targetStarted(BuildEvent event) {}
+		@Override public void targetFinished(BuildEvent event) {}
+		@Override public void taskStarted(BuildEvent event) {}
+		@Override public void taskFinished(BuildEvent event) {}
+		@Override public void messageLogged(BuildEvent event) {}
+	}
+}
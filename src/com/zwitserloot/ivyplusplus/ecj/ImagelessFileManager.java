@@ -0,0 +1,43 @@
+package com.zwitserloot.ivyplusplus.ecj;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.lang.model.SourceVersion;
+import javax.tools.StandardLocation;
+
+import org.eclipse.jdt.internal.compiler.apt.util.EclipseFileManager;
+
+/**
+ * The file manager annotation processors get to see, minus the JDK's module image.
+ * 
+ * ecj's own file manager walks every file in the module image each time it is created, which is once per compile. Processors practically never
+ * look up JDK classes through the file manager (they use {@code Elements} for that, which goes through the compiler's classpath instead), so
+ * {@link StandardLocation#SYSTEM_MODULES} is simply left empty.
+ */
+class ImagelessFileManager extends EclipseFileManager {
+	ImagelessFileManager(Locale locale, Charset charset) {
+		super(locale, charset);
+	}
+	
+	@Override protected void initialize(File javahome) throws IOException {
+		if (SourceVersion.latest().compareTo(SourceVersion.RELEASE_8) <= 0) {
+			// No module image to walk.
+			super.initialize(javahome);
+			return;
+		}
+		
+		List<File> classpath = new ArrayList<File>();
+		String classProp = System.getProperty("java.class.path");
+		if (classProp != null) for (String entry : classProp.split(File.pathSeparator)) {
+			File file = new File(entry);
+			if (!entry.isEmpty() && file.exists()) classpath.add(file);
+		}
+		setLocation(StandardLocation.CLASS_PATH, classpath);
+		setLocation(StandardLocation.ANNOTATION_PROCESSOR_PATH, classpath);
+	}
+}
@@ -0,0 +1,472 @@
+package com.zwitserloot.ivyplusplus.ecj;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.internal.compiler.CompilationResult;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+import org.eclipse.jdt.internal.compiler.env.IBinaryAnnotation;
+import org.eclipse.jdt.internal.compiler.env.IBinaryField;
+import org.eclipse.jdt.internal.compiler.env.IBinaryMethod;
+import org.eclipse.jdt.internal.compiler.env.IBinaryNestedType;
+import org.eclipse.jdt.internal.compiler.impl.Constant;
+
+/**
+ * Tracks, per compiled source file, which class files it produced, the API hash of each of those class files, and which names it referenced.
+ * 
+ * The state is stored in a text file next to the destination directory, and is used to figure out which sources need recompiling:
+ * sources that changed, were added, or whose class files are missing, plus any source that references a type whose API hash changed.
+ * The API hash covers only what other sources can observe: the type's signature, its non-private members, and constant values.
+ * Method bodies, private members, and local/anonymous classes do not count.
+ */
+public class IncrementalState {
+	private static final String HEADER = "ipp-ecj-state 1";
+	private static final String NO_API = "-";
+	
+	private final File stateFile;
+	private final File destdir;
+	private final String key;
+	private final boolean reusable;
+	private final Map<String, Unit> units = new TreeMap<String, Unit>();
+	private File stash;
+	
+	private IncrementalState(File stateFile, File destdir, String key, boolean reusable) {
+		this.stateFile = stateFile;
+		this.destdir = destdir;
+		this.key = key;
+		this.reusable = reusable;
+	}
+	
+	private static final class Unit {
+		long lastModified, length;
+		final Map<String, String> classFiles = new TreeMap<String, String>();
+		final Set<String> qualifiedRefs = new TreeSet<String>();
+		final Set<String> simpleRefs = new TreeSet<String>();
+	}
+	
+	public static File stateFileFor(File destdir) {
+		return new File(destdir.getAbsoluteFile().getParentFile(), destdir.getName() + ".ecjstate");
+	}
+	
+	/**
+	 * Loads the state for the given destination directory.
+	 * 
+	 * If there is no state file, or it was written for a different {@code key} (different compiler options, classpath, or annotation processors),
+	 * the returned state considers every source stale. The units listed in a mismatched state file are still loaded, so that
+	 * {@link #forgetAll()} can remove the class files they produced.
+	 */
+	public static IncrementalState load(File destdir, String key) throws IOException {
+		File stateFile = stateFileFor(destdir);
+		if (!stateFile.isFile()) return new IncrementalState(stateFile, destdir, key, false);
+		
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), StandardCharsets.UTF_8))) {
+			if (!HEADER.equals(br.readLine())) return new IncrementalState(stateFile, destdir, key, false);
+			String storedKey = br.readLine();
+			IncrementalState state = new IncrementalState(stateFile, destdir, key, key.equals(storedKey));
+			Unit unit = null;
+			for (String line = br.readLine(); line != null; line = br.readLine()) {
+				String[] parts = line.split("\t");
+				if (parts[0].equals("U") && parts.length == 4) {
+					unit = new Unit();
+					unit.lastModified = Long.parseLong(parts[1]);
+					unit.length = Long.parseLong(parts[2]);
+					state.units.put(parts[3], unit);
+				} else if (unit == null) {
+					continue;
+				} else if (parts[0].equals("C") && parts.length == 3) {
+					unit.classFiles.put(parts[1], parts[2]);
+				} else if (parts[0].equals("Q") && parts.length == 2) {
+					unit.qualifiedRefs.addAll(Arrays.asList(parts[1].split(" ")));
+				} else if (parts[0].equals("S") && parts.length == 2) {
+					unit.simpleRefs.addAll(Arrays.asList(parts[1].split(" ")));
+				}
+			}
+			return state;
+		} catch (NumberFormatException e) {
+			return new IncrementalState(stateFile, destdir, key, false);
+		}
+	}
+	
+	/**
+	 * Writes the state to a temporary file first and then moves it into place, so that a build killed halfway through never leaves a truncated state file behind.
+	 */
+	public synchronized void save() throws IOException {
+		File tmp = new File(stateFile.getAbsoluteFile().getParentFile(), stateFile.getName() + ".tmp");
+		try {
+			try (FileOutputStream fos = new FileOutputStream(tmp)) {
+				Writer w = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+				w.write(HEADER);
+				w.write("\n");
+				w.write(key);
+				w.write("\n");
+				for (Map.Entry<String, Unit> e : units.entrySet()) {
+					Unit unit = e.getValue();
+					w.write("U\t" + unit.lastModified + "\t" + unit.length + "\t" + e.getKey() + "\n");
+					for (Map.Entry<String, String> cf : unit.classFiles.entrySet()) w.write("C\t" + cf.getKey() + "\t" + cf.getValue() + "\n");
+					if (!unit.qualifiedRefs.isEmpty()) w.write("Q\t" + join(unit.qualifiedRefs) + "\n");
+					if (!unit.simpleRefs.isEmpty()) w.write("S\t" + join(unit.simpleRefs) + "\n");
+				}
+				w.flush();
+				fos.getFD().sync();
+			}
+			try {
+				Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Whether a previous compile with the same settings left state behind; if not, everything has to be compiled.
+	 */
+	public boolean isReusable() {
+		return reusable;
+	}
+	
+	public static String keyOf(SourceFile sourceFile) {
+		return sourceFile.getSourceFile().getAbsolutePath();
+	}
+	
+	/**
+	 * Returns those sources that are new, have been modified, or whose class files have gone missing since they were last compiled.
+	 */
+	public synchronized List<SourceFile> findStale(SourceFile[] sourceFiles) {
+		List<SourceFile> out = new ArrayList<SourceFile>();
+		for (SourceFile sourceFile : sourceFiles) {
+			Unit unit = reusable ? units.get(keyOf(sourceFile)) : null;
+			File file = sourceFile.getSourceFile();
+			if (unit == null || unit.lastModified != file.lastModified() || unit.length != file.length()) {
+				out.add(sourceFile);
+				continue;
+			}
+			for (String classFile : unit.classFiles.keySet()) {
+				if (!new File(destdir, classFile).isFile()) {
+					out.add(sourceFile);
+					break;
+				}
+			}
+		}
+		return out;
+	}
+	
+	/**
+	 * Forgets every unit whose source is not in {@code sourceKeys} anymore, deleting the class files it produced.
+	 * 
+	 * @return The binary names (e.g. {@code pkg/Outer$Inner}) of the types that disappeared as a result.
+	 */
+	public synchronized Set<String> forgetDeleted(Collection<String> sourceKeys) {
+		Set<String> gone = new HashSet<String>(units.keySet());
+		gone.removeAll(sourceKeys);
+		Set<String> out = new HashSet<String>();
+		for (String sourceKey : gone) out.addAll(apiTypes(forget(sourceKey)));
+		return out;
+	}
+	
+	/**
+	 * Forgets all units, deleting the class files they produced. Used when the state cannot be reused.
+	 */
+	public synchronized void forgetAll() {
+		for (String sourceKey : new ArrayList<String>(units.keySet())) forget(sourceKey);
+	}
+	
+	/**
+	 * Forgets the given source, deleting the class files it produced last time, so that a stale class file never lingers next to (or instead of) a recompiled one.
+	 * 
+	 * @return The class files (as path relative to the destination directory) the source produced, mapped to their API hashes.
+	 */
+	public synchronized Map<String, String> forget(SourceFile sourceFile) {
+		return forget(keyOf(sourceFile));
+	}
+	
+	private Map<String, String> forget(String sourceKey) {
+		Unit unit = units.remove(sourceKey);
+		if (unit == null) return Collections.emptyMap();
+		for (String classFile : unit.classFiles.keySet()) {
+			File file = new File(destdir, classFile);
+			if (stash == null) {
+				file.delete();
+				continue;
+			}
+			File stashed = new File(stash, classFile);
+			stashed.getParentFile().mkdirs();
+			if (!file.renameTo(stashed)) file.delete();
+		}
+		return unit.classFiles;
+	}
+	
+	/**
+	 * Makes {@link #forget(SourceFile)} move class files into the given directory instead of deleting them, so that a {@link ClassFileWriter}
+	 * can move them back if recompiling produces the exact same bytes. Call {@link #clearStash()} after every compile.
+	 */
+	public synchronized void setStash(File stash) {
+		this.stash = stash;
+		clearStash();
+	}
+	
+	/**
+	 * Deletes whatever is left in the stash: class files that weren't produced again by the compile.
+	 */
+	public synchronized void clearStash() {
+		if (stash != null) deleteRecursively(stash);
+	}
+	
+	private static void deleteRecursively(File f) {
+		File[] children = f.listFiles();
+		if (children != null) for (File child : children) deleteRecursively(child);
+		f.delete();
+	}
+	
+	/**
+	 * Records the outcome of compiling a source.
+	 * 
+	 * @param classFiles The class files written for this source, as path relative to the destination directory, mapped to their contents.
+	 */
+	public synchronized void record(SourceFile sourceFile, CompilationResult result, Map<String, byte[]> classFiles) {
+		Unit unit = new Unit();
+		File file = sourceFile.getSourceFile();
+		// A source with errors has no class files; give it an impossible timestamp so that it is picked up again on the next run.
+		unit.lastModified = result.hasErrors() ? -1L : file.lastModified();
+		unit.length = file.length();
+		for (Map.Entry<String, byte[]> e : classFiles.entrySet()) unit.classFiles.put(e.getKey(), apiHash(e.getKey(), e.getValue()));
+		if (result.qualifiedReferences != null) for (char[][] ref : result.qualifiedReferences) unit.qualifiedRefs.add(CharOperation.toString(ref));
+		if (result.simpleNameReferences != null) for (char[] ref : result.simpleNameReferences) unit.simpleRefs.add(new String(ref));
+		if (result.rootReferences != null) for (char[] ref : result.rootReferences) unit.qualifiedRefs.add(new String(ref));
+		units.put(keyOf(sourceFile), unit);
+	}
+	
+	/**
+	 * Makes the given sources (as per {@link #keyOf(SourceFile)}) stale, so that the next run recompiles them even if they haven't changed.
+	 */
+	public synchronized void markStale(Collection<String> sourceKeys) {
+		for (String sourceKey : sourceKeys) {
+			Unit unit = units.get(sourceKey);
+			if (unit != null) unit.lastModified = -1L;
+		}
+	}
+	
+	/**
+	 * Compares the API of the types the given source produced before it was recompiled, with what it produced now.
+	 * 
+	 * @param before The result of {@link #forget(SourceFile)}, called before recompiling.
+	 * @return The binary names (e.g. {@code pkg/Outer$Inner}) of types that were added, removed, or whose API changed.
+	 */
+	public synchronized Set<String> changedTypes(SourceFile sourceFile, Map<String, String> before) {
+		Unit unit = units.get(keyOf(sourceFile));
+		Map<String, String> after = unit == null ? Collections.<String, String>emptyMap() : unit.classFiles;
+		Set<String> out = new HashSet<String>();
+		for (Map.Entry<String, String> e : before.entrySet()) {
+			if (NO_API.equals(e.getValue())) continue;
+			if (!e.getValue().equals(after.get(e.getKey()))) out.add(typeName(e.getKey()));
+		}
+		for (Map.Entry<String, String> e : after.entrySet()) {
+			if (NO_API.equals(e.getValue())) continue;
+			if (!before.containsKey(e.getKey())) out.add(typeName(e.getKey()));
+		}
+		return out;
+	}
+	
+	/**
+	 * Returns the sources (as per {@link #keyOf(SourceFile)}) that reference any of the given types.
+	 * 
+	 * This errs on the side of caution: a source counts as dependent if it mentions the simple name of the type (or of any of its outer types)
+	 * and either mentions the type's package, or lives in that package.
+	 */
+	public synchronized Set<String> dependentsOf(Set<String> changedTypes) {
+		Set<String> out = new HashSet<String>();
+		if (changedTypes.isEmpty()) return out;
+		for (Map.Entry<String, Unit> e : units.entrySet()) {
+			Unit unit = e.getValue();
+			for (String type : changedTypes) {
+				if (references(e.getKey(), unit, type)) {
+					out.add(e.getKey());
+					break;
+				}
+			}
+		}
+		return out;
+	}
+	
+	private static boolean references(String sourceKey, Unit unit, String binaryName) {
+		int slash = binaryName.lastIndexOf('/');
+		String pkg = slash == -1 ? "" : binaryName.substring(0, slash).replace('/', '.');
+		boolean pkgMatch = pkg.isEmpty() || unit.qualifiedRefs.contains(pkg) || unit.qualifiedRefs.contains(binaryName.replace('/', '.').replace('$', '.'));
+		if (!pkgMatch) {
+			for (String classFile : unit.classFiles.keySet()) {
+				int idx = classFile.lastIndexOf('/');
+				if ((idx == -1 ? "" : classFile.substring(0, idx).replace('/', '.')).equals(pkg)) {
+					pkgMatch = true;
+					break;
+				}
+			}
+		}
+		if (!pkgMatch) return false;
+		for (String simpleName : binaryName.substring(slash + 1).split("\\$")) {
+			if (unit.simpleRefs.contains(simpleName)) return true;
+		}
+		return false;
+	}
+	
+	private static Set<String> apiTypes(Map<String, String> classFiles) {
+		Set<String> out = new HashSet<String>();
+		for (Map.Entry<String, String> e : classFiles.entrySet()) if (!NO_API.equals(e.getValue())) out.add(typeName(e.getKey()));
+		return out;
+	}
+	
+	private static String typeName(String classFile) {
+		return classFile.endsWith(".class") ? classFile.substring(0, classFile.length() - 6) : classFile;
+	}
+	
+	/**
+	 * Hashes those parts of a class file that other sources can depend on. Local and anonymous classes have no API; their hash is {@code "-"}.
+	 */
+	static String apiHash(String fileName, byte[] classFile) {
+		ClassFileReader reader;
+		try {
+			reader = new ClassFileReader(classFile, fileName.toCharArray());
+		} catch (ClassFormatException e) {
+			// Can't tell what's in it, so treat it as changed every time.
+			return "?" + System.nanoTime();
+		}
+		if (reader.isLocal() || reader.isAnonymous()) return NO_API;
+		
+		StringBuilder sb = new StringBuilder();
+		// ACC_SUPER (0x20) is a codegen detail, not API.
+		sb.append(reader.accessFlags() & ~0x20).append(' ').append(reader.getName()).append('\n');
+		sb.append("extends ").append(str(reader.getSuperclassName())).append('\n');
+		char[][] interfaces = reader.getInterfaceNames();
+		if (interfaces != null) for (char[] i : interfaces) sb.append("implements ").append(i).append('\n');
+		sb.append("signature ").append(str(reader.getGenericSignature())).append('\n');
+		appendAnnotations(sb, reader.getAnnotations());
+		
+		List<String> members = new ArrayList<String>();
+		IBinaryField[] fields = reader.getFields();
+		if (fields != null) for (IBinaryField field : fields) {
+			if (isPrivate(field.getModifiers())) continue;
+			StringBuilder m = new StringBuilder();
+			m.append("F ").append(field.getModifiers()).append(' ').append(field.getName()).append(' ').append(field.getTypeName());
+			m.append(' ').append(str(field.getGenericSignature()));
+			Constant constant = field.getConstant();
+			if (constant != null && constant != Constant.NotAConstant) m.append(" = ").append(constant.typeName()).append(':').append(constant.stringValue());
+			appendAnnotations(m, field.getAnnotations());
+			members.add(m.toString());
+		}
+		IBinaryMethod[] methods = reader.getMethods();
+		if (methods != null) for (IBinaryMethod method : methods) {
+			if (isPrivate(method.getModifiers()) || method.isClinit()) continue;
+			StringBuilder m = new StringBuilder();
+			m.append("M ").append(method.getModifiers()).append(' ').append(method.getSelector()).append(method.getMethodDescriptor());
+			m.append(' ').append(str(method.getGenericSignature()));
+			char[][] exceptions = method.getExceptionTypeNames();
+			if (exceptions != null) for (char[] e : exceptions) m.append(" throws ").append(e);
+			if (method.getDefaultValue() != null) m.append(" default");
+			appendAnnotations(m, method.getAnnotations());
+			members.add(m.toString());
+		}
+		IBinaryNestedType[] memberTypes = reader.getMemberTypes();
+		if (memberTypes != null) for (IBinaryNestedType memberType : memberTypes) {
+			if (isPrivate(memberType.getModifiers())) continue;
+			members.add("T " + memberType.getModifiers() + ' ' + str(memberType.getName()));
+		}
+		Collections.sort(members);
+		for (String member : members) sb.append(member).append('\n');
+		
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			return toHex(md.digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM is required to support SHA-1.
+			throw new InternalError("SHA-1 not available");
+		}
+	}
+	
+	/**
+	 * Computes the key for a state file; if anything that goes into the key changes, the state is discarded and everything is recompiled.
+	 * 
+	 * Archives are fingerprinted by size and last modified time; directories by the size and last modified time of every file in them.
+	 */
+	public static String computeKey(Collection<String> settings, Collection<File> classpath) {
+		StringBuilder sb = new StringBuilder();
+		for (String setting : settings) sb.append(setting).append('\n');
+		for (File f : classpath) {
+			sb.append(f.getAbsolutePath()).append('\n');
+			fingerprint(sb, f, "");
+		}
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			return toHex(md.digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new InternalError("SHA-1 not available");
+		}
+	}
+	
+	private static void fingerprint(StringBuilder sb, File f, String relative) {
+		if (f.isDirectory()) {
+			String[] children = f.list();
+			if (children == null) return;
+			Arrays.sort(children);
+			for (String child : children) fingerprint(sb, new File(f, child), relative + "/" + child);
+		} else {
+			sb.append(relative).append(' ').append(f.length()).append(' ').append(f.lastModified()).append('\n');
+		}
+	}
+	
+	private static void appendAnnotations(StringBuilder sb, IBinaryAnnotation[] annotations) {
+		if (annotations == null) return;
+		List<String> names = new ArrayList<String>();
+		for (IBinaryAnnotation a : annotations) names.add(str(a.getTypeName()));
+		Collections.sort(names);
+		for (String name : names) sb.append(" @").append(name);
+	}
+	
+	private static boolean isPrivate(int modifiers) {
+		return (modifiers & 0x0002) != 0;
+	}
+	
+	private static String str(char[] c) {
+		return c == null ? "" : new String(c);
+	}
+	
+	private static String join(Collection<String> c) {
+		StringBuilder sb = new StringBuilder();
+		for (String s : c) {
+			if (sb.length() > 0) sb.append(' ');
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+	
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) sb.append(String.format("%02x", b & 0xFF));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,120 @@
+package com.zwitserloot.ivyplusplus.ecj;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.eclipse.jdt.internal.compiler.batch.ClasspathJrt;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem.Classpath;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem.ClasspathSectionProblemReporter;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+import org.eclipse.jdt.internal.compiler.env.IModule;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+import org.eclipse.jdt.internal.compiler.util.JRTUtil;
+
+/**
+ * The running JDK's module image as a classpath entry, answering package and module queries from a {@link ClasspathIndex.JdkImage} instead of
+ * from ecj's own {@code JRTUtil}, which walks the entire image the first time it is used in a VM.
+ * 
+ * Class files are read straight from the {@code jrt:/} filesystem. Only {@code findTypeNames}, which ecj rarely needs, falls back to ecj's implementation.
+ */
+final class IndexedClasspathJrt extends ClasspathJrt {
+	private static final String MODULES = "/modules";
+	
+	private final ClasspathIndex.JdkImage image;
+	
+	IndexedClasspathJrt(File javaHome, ClasspathIndex.JdkImage image) {
+		super(javaHome, true, null, null);
+		this.image = image;
+	}
+	
+	@Override public void initialize() throws IOException {
+		String key = file.getPath();
+		synchronized (ModulesCache) {
+			if (!ModulesCache.containsKey(key)) {
+				Map<String, IModule> modules = new HashMap<String, IModule>();
+				for (String name : image.modules) {
+					byte[] content = JRTUtil.safeReadBytes(image.fs.getPath(MODULES, name, IModule.MODULE_INFO_CLASS));
+					if (content == null) continue;
+					try {
+						IModule module = new ClassFileReader(content, IModule.MODULE_INFO_CLASS.toCharArray()).getModuleDeclaration();
+						if (module != null) modules.put(String.valueOf(module.name()), module);
+					} catch (ClassFormatException e) {
+						// Same as ecj: a broken module-info just means that module isn't there.
+					}
+				}
+				ModulesCache.put(key, Collections.unmodifiableMap(modules));
+			}
+			moduleNamesCache.addAll(ModulesCache.get(key).keySet());
+		}
+	}
+	
+	@Override public char[][] getModulesDeclaringPackage(String qualifiedPackageName, String moduleName) {
+		List<String> modules = image.packages.get(qualifiedPackageName.replace('.', '/'));
+		if (modules == null) return null;
+		if (moduleName == null) return toCharArrays(modules);
+		return modules.contains(moduleName) ? new char[][] {moduleName.toCharArray()} : null;
+	}
+	
+	@Override public boolean hasCompilationUnit(String qualifiedPackageName, String moduleName) {
+		if (moduleName == null || !isPackage(qualifiedPackageName, moduleName)) return false;
+		Path packagePath = image.fs.getPath(MODULES, moduleName, qualifiedPackageName);
+		if (!Files.isDirectory(packagePath)) return false;
+		try (Stream<Path> files = Files.list(packagePath)) {
+			return files.anyMatch(f -> f.toString().endsWith(".class") || f.toString().endsWith(".CLASS"));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	@Override public NameEnvironmentAnswer findClass(char[] typeName, String qualifiedPackageName, String moduleName, String qualifiedBinaryFileName, boolean asBinaryOnly) {
+		// External annotations are ecj's business; we never configure them, but if someone does, let ecj handle it.
+		if (annotationPaths != null) return super.findClass(typeName, qualifiedPackageName, moduleName, qualifiedBinaryFileName, asBinaryOnly);
+		
+		List<String> modules = image.packages.get(qualifiedPackageName);
+		if (modules == null) return null;
+		if (moduleName != null) {
+			if (!modules.contains(moduleName)) return null;
+			modules = Collections.singletonList(moduleName);
+		}
+		
+		for (String module : modules) {
+			if (!moduleNamesCache.contains(module)) continue;
+			try {
+				byte[] content = JRTUtil.safeReadBytes(image.fs.getPath(MODULES, module, qualifiedBinaryFileName));
+				if (content == null) continue;
+				ClassFileReader reader = new ClassFileReader(content, qualifiedBinaryFileName.toCharArray());
+				reader.moduleName = module.toCharArray();
+				return new NameEnvironmentAnswer(reader, fetchAccessRestriction(qualifiedBinaryFileName), reader.moduleName);
+			} catch (ClassFormatException | IOException e) {
+				// treat as if class file is missing, as ecj does.
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Same as {@code ClasspathJrt}, which has no linked jars either, but with the generic signature of {@code Classpath}; the raw type ecj declares
+	 * it with would otherwise be an unchecked warning here.
+	 */
+	@Override public List<Classpath> fetchLinkedJars(ClasspathSectionProblemReporter problemReporter) {
+		return null;
+	}
+	
+	@Override public String toString() {
+		return "Indexed classpath for JRT System " + file.getPath();
+	}
+	
+	private static char[][] toCharArrays(List<String> list) {
+		char[][] result = new char[list.size()][];
+		for (int i = 0; i < result.length; i++) result[i] = list.get(i).toCharArray();
+		return result;
+	}
+}
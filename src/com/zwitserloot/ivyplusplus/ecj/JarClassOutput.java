@@ -0,0 +1,113 @@
+package com.zwitserloot.ivyplusplus.ecj;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Collects class files (and resources) in memory, and writes them out as a single jar file.
+ * 
+ * The jar is reproducible: entries are written in sorted order, every entry gets the same timestamp, and if no manifest was added,
+ * a fixed minimal one is generated.
+ */
+public class JarClassOutput implements ClassOutput {
+	private static final String MANIFEST = "META-INF/MANIFEST.MF";
+	private static final byte[] DEFAULT_MANIFEST = "Manifest-Version: 1.0\r\nCreated-By: ivyplusplus\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	
+	/** 1980-02-01 00:00, in local time: converting it to a zip (DOS) timestamp yields the same bytes in every timezone. */
+	private static final long ENTRY_TIME = new GregorianCalendar(1980, 1, 1, 0, 0, 0).getTimeInMillis();
+	
+	/** Either a {@code byte[]} or the {@code File} to read the content from. */
+	private final Map<String, Object> entries = new TreeMap<String, Object>();
+	
+	@Override public synchronized File write(String relativeName, byte[] content) {
+		entries.put(relativeName, content);
+		return null;
+	}
+	
+	/**
+	 * Adds a file from disk; it is not read until the jar is written.
+	 */
+	public synchronized void addFile(String relativeName, File file) {
+		entries.put(relativeName.replace(File.separatorChar, '/'), file);
+	}
+	
+	/**
+	 * Adds every file in the given directory (recursively), such as resources an annotation processor generated.
+	 */
+	public synchronized void addDirectory(File dir) {
+		addDirectory(dir, "");
+	}
+	
+	private void addDirectory(File dir, String prefix) {
+		File[] children = dir.listFiles();
+		if (children == null) return;
+		for (File child : children) {
+			if (child.isDirectory()) addDirectory(child, prefix + child.getName() + "/");
+			else if (!entries.containsKey(prefix + child.getName())) entries.put(prefix + child.getName(), child);
+		}
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Writes the jar. The file is written under a temporary name first and then moved into place, so a failed write never leaves a half-written jar behind.
+	 */
+	public synchronized void writeTo(File jarFile) throws IOException {
+		File parent = jarFile.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+		File tmp = new File(parent, jarFile.getName() + ".tmp");
+		try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			// The manifest goes first, as JarInputStream only finds it there.
+			Set<String> dirs = new HashSet<String>();
+			dirs.add("META-INF/");
+			writeEntry(out, "META-INF/");
+			Object manifest = entries.get(MANIFEST);
+			writeEntry(out, MANIFEST, manifest == null ? DEFAULT_MANIFEST : manifest);
+			
+			for (Map.Entry<String, Object> e : entries.entrySet()) {
+				String name = e.getKey();
+				if (name.equals(MANIFEST)) continue;
+				for (int i = name.indexOf('/'); i != -1; i = name.indexOf('/', i + 1)) {
+					String dir = name.substring(0, i + 1);
+					if (dirs.add(dir)) writeEntry(out, dir);
+				}
+				writeEntry(out, name, e.getValue());
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		Files.move(tmp.toPath(), jarFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	private static void writeEntry(ZipOutputStream out, String dirName) throws IOException {
+		ZipEntry entry = new ZipEntry(dirName);
+		entry.setTime(ENTRY_TIME);
+		out.putNextEntry(entry);
+		out.closeEntry();
+	}
+	
+	private static void writeEntry(ZipOutputStream out, String name, Object content) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		entry.setTime(ENTRY_TIME);
+		out.putNextEntry(entry);
+		if (content instanceof byte[]) out.write((byte[]) content);
+		else Files.copy(((File) content).toPath(), (OutputStream) out);
+		out.closeEntry();
+	}
+}
@@ -0,0 +1,48 @@
+package com.zwitserloot.ivyplusplus.ecj;
+
+import java.util.Arrays;
+
+/**
+ * Where each line of a source file starts, so that the line around any offset can be found without scanning the file.
+ * 
+ * {@code \n}, {@code \r} and {@code \r\n} all end a line, as they do for ecj; offsets are into the file exactly as it is on disk.
+ */
+final class LineIndex {
+	private final char[] contents;
+	private final int[] starts;
+	private final int lines;
+	
+	LineIndex(char[] contents) {
+		this.contents = contents;
+		int[] starts = new int[64];
+		int lines = 1;
+		for (int i = 0; i < contents.length; i++) {
+			char c = contents[i];
+			if (c != '\n' && c != '\r') continue;
+			if (c == '\r' && i + 1 < contents.length && contents[i + 1] == '\n') i++;
+			if (lines == starts.length) starts = Arrays.copyOf(starts, lines * 2);
+			starts[lines++] = i + 1;
+		}
+		this.starts = starts;
+		this.lines = lines;
+	}
+	
+	/**
+	 * Returns the offset at which the line holding {@code offset} starts.
+	 */
+	int lineStart(int offset) {
+		int idx = Arrays.binarySearch(starts, 0, lines, offset);
+		return starts[idx >= 0 ? idx : -idx - 2];
+	}
+	
+	/**
+	 * Returns the offset of the line terminator of the line starting at {@code lineStart}, or the length of the file for the last line.
+	 */
+	int lineEnd(int lineStart) {
+		int idx = Arrays.binarySearch(starts, 0, lines, lineStart);
+		if (idx < 0 || idx + 1 == lines) return contents.length;
+		int end = starts[idx + 1] - 1;
+		if (end > lineStart && contents[end] == '\n' && contents[end - 1] == '\r') end--;
+		return end;
+	}
+}
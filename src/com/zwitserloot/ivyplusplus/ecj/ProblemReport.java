@@ -0,0 +1,132 @@
+package com.zwitserloot.ivyplusplus.ecj;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the problems of one or more ecj compile runs, and writes them out as a machine readable report.
+ * 
+ * The report is checkstyle style XML, unless the file name ends in {@code .json}, in which case it is a JSON array with one object per problem.
+ */
+public class ProblemReport {
+	private final Map<String, List<Problem>> problems = new LinkedHashMap<String, List<Problem>>();
+	
+	private static final class Problem {
+		final int line, column, id;
+		final boolean error;
+		final String message;
+		
+		Problem(int line, int column, boolean error, String message, int id) {
+			this.line = line;
+			this.column = column;
+			this.error = error;
+			this.message = message;
+			this.id = id;
+		}
+	}
+	
+	/**
+	 * @param column 1-based, or 0 if unknown.
+	 * @param id ecj's problem id (see {@code IProblem}), without the category bits.
+	 */
+	public synchronized void add(File file, int line, int column, boolean error, String message, int id) {
+		String key = file.getAbsolutePath();
+		List<Problem> list = problems.get(key);
+		if (list == null) problems.put(key, list = new ArrayList<Problem>());
+		list.add(new Problem(line, column, error, message, id));
+	}
+	
+	/**
+	 * Writes the report. The file is written under a temporary name first and then moved into place, so readers never see half a report.
+	 */
+	public synchronized void writeTo(File reportFile) throws IOException {
+		File parent = reportFile.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+		File tmp = new File(parent, reportFile.getName() + ".tmp");
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+			if (reportFile.getName().toLowerCase().endsWith(".json")) writeJson(out);
+			else writeCheckstyle(out);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		Files.move(tmp.toPath(), reportFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	private void writeCheckstyle(Writer out) throws IOException {
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<checkstyle version=\"4.3\">\n");
+		for (Map.Entry<String, List<Problem>> e : problems.entrySet()) {
+			out.write("\t<file name=\"" + xml(e.getKey()) + "\">\n");
+			for (Problem p : e.getValue()) {
+				out.write("\t\t<error line=\"" + p.line + "\"");
+				if (p.column > 0) out.write(" column=\"" + p.column + "\"");
+				out.write(" severity=\"" + (p.error ? "error" : "warning") + "\" message=\"" + xml(p.message) + "\" source=\"ecj." + p.id + "\"/>\n");
+			}
+			out.write("\t</file>\n");
+		}
+		out.write("</checkstyle>\n");
+	}
+	
+	private void writeJson(Writer out) throws IOException {
+		out.write("[");
+		boolean first = true;
+		for (Map.Entry<String, List<Problem>> e : problems.entrySet()) {
+			for (Problem p : e.getValue()) {
+				out.write(first ? "\n" : ",\n");
+				first = false;
+				out.write("\t{\"file\": " + json(e.getKey()) + ", \"line\": " + p.line + ", \"column\": " + p.column + ", \"severity\": \"" + (p.error ? "error" : "warning") +
+					"\", \"id\": " + p.id + ", \"message\": " + json(p.message) + "}");
+			}
+		}
+		out.write(first ? "]\n" : "\n]\n");
+	}
+	
+	private static String xml(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '<': sb.append("&lt;"); break;
+			case '>': sb.append("&gt;"); break;
+			case '&': sb.append("&amp;"); break;
+			case '"': sb.append("&quot;"); break;
+			case '\n': sb.append("&#10;"); break;
+			case '\r': sb.append("&#13;"); break;
+			case '\t': sb.append("&#9;"); break;
+			default:
+				// Other control characters can't appear in XML 1.0 at all.
+				if (c >= 0x20) sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+	
+	private static String json(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+				else sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -21,7 +21,8 @@
  */
 package com.zwitserloot.ivyplusplus.mavencentral;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -30,15 +31,30 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 
+import org.apache.tools.ant.BuildEvent;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.SubBuildListener;
 import org.apache.tools.ant.Task;
 
 public class CreateArtifactBundle extends Task {
 	private File src, bin, javadoc, pom, key, out;
-	private String version, artifactId, passphrase;
+	private String version, artifactId, groupId, passphrase, checksums;
 	private boolean noSourceOrJavadocNeeded;
 	
 	public void setSrc(File src) {
@@ -73,10 +89,24 @@ public class CreateArtifactBundle extends Task {
 		this.artifactId = artifactId;
 	}
 	
+	/**
+	 * Replaces {@code @GROUP@} in the pom; {@code @VERSION@} and {@code @ARTIFACT@} are replaced with 'version' and 'artifactId'.
+	 */
+	public void setGroupId(String groupId) {
+		this.groupId = groupId;
+	}
+	
 	public void setPassphrase(String passphrase) {
 		this.passphrase = passphrase;
 	}
 	
+	/**
+	 * Comma separated list of checksums to add for every artifact, out of {@code md5}, {@code sha1}, {@code sha256} and {@code sha512}.
+	 */
+	public void setChecksums(String checksums) {
+		this.checksums = checksums;
+	}
+	
 	public void setNoSourceOrJavadocNeeded(boolean noSourceOrJavadocNeeded) {
 		this.noSourceOrJavadocNeeded = noSourceOrJavadocNeeded;
 	}
@@ -102,40 +132,63 @@ public class CreateArtifactBundle extends Task {
 		if (src != null && !src.getName().toLowerCase().endsWith(".jar")) throw new BuildException("Only jar files are supported by create-artifact-bundle; 'src' attribute isn't one.", getLocation());
 		if (javadoc != null && !javadoc.getName().toLowerCase().endsWith(".jar")) throw new BuildException("Only jar files are supported by create-artifact-bundle; 'javadoc' attribute isn't one.", getLocation());
 		
-		byte[] pomData;
+		if (!pom.isFile()) throw new BuildException("Missing pom file: " + pom, getLocation());
+		
+		// Replaced while the pom is read for signing; it is never read in full first.
+		final Map<String, String> tokens = new HashMap<String, String>();
+		if (version != null && !version.isEmpty()) tokens.put("@VERSION@", version);
+		tokens.put("@ARTIFACT@", artifactId);
+		if (groupId != null) tokens.put("@GROUP@", groupId);
+		
+		final Map<String, String> algorithms = parseChecksums();
+		
+		final DetachedSigner signer;
 		try {
-			InputStream pomStream = new FileInputStream(pom);
-			try {
-				pomData = readStream(pomStream);
-			} finally {
-				pomStream.close();
-			}
-		} catch (FileNotFoundException e) {
-			throw new BuildException("Missing pom file", e, getLocation());
+			signer = loadSigner(key, passphrase);
 		} catch (IOException e) {
-			throw new BuildException("Can't read pom file", e, getLocation());
-		}
-		
-		if (version != null && !version.isEmpty()) {
-			pomData = replaceVersion(pomData, "@VERSION@", version);
+			throw new BuildException("Can't read signing key: " + e.getMessage(), e, getLocation());
+		} catch (SigningException e) {
+			throw new BuildException("Problem signing files", e, getLocation());
 		}
 		
-		CreateDetachedSignatures signer = new CreateDetachedSignatures();
+		Map<String, File> artifacts = new LinkedHashMap<String, File>();
+		artifacts.put("pom.xml", pom);
+		artifacts.put(artifactId + "-" + version + ".jar", bin);
+		if (src != null) artifacts.put(artifactId + "-" + version + "-sources.jar", src);
+		if (javadoc != null) artifacts.put(artifactId + "-" + version + "-javadoc.jar", javadoc);
 		
+		// Every artifact is read once, on its own thread, and on the way into the signer also goes through every checksum and into a spill buffer.
+		// This thread then copies them from there into the bundle in order, as each is done.
+		ForkJoinPool pool = new ForkJoinPool(Math.min(artifacts.size(), Runtime.getRuntime().availableProcessors()));
+		Map<String, Future<Processed>> results = new LinkedHashMap<String, Future<Processed>>();
 		try {
+			for (final Map.Entry<String, File> artifact : artifacts.entrySet()) {
+				final Map<String, String> replace = artifact.getValue() == pom ? tokens : null;
+				results.put(artifact.getKey(), pool.submit(new Callable<Processed>() {
+					@Override public Processed call() throws IOException, SigningException {
+						return process(artifact.getValue(), replace, signer, algorithms);
+					}
+				}));
+			}
+			
 			FileOutputStream outStream = new FileOutputStream(out);
 			try {
 				JarOutputStream zipOut = new JarOutputStream(outStream);
-				zipOut.putNextEntry(new JarEntry("pom.xml"));
-				zipOut.write(pomData);
-				ByteArrayOutputStream signature = new ByteArrayOutputStream();
-				signer.signFile(new ByteArrayInputStream(pomData), signature, key, passphrase);
-				zipOut.putNextEntry(new JarEntry("pom.xml.asc"));
-				zipOut.write(signature.toByteArray());
-				
-				writeToJar(zipOut, artifactId + "-" + version + ".jar", bin);
-				if (src != null) writeToJar(zipOut, artifactId + "-" + version + "-sources.jar", src);
-				if (src != null) writeToJar(zipOut, artifactId + "-" + version + "-javadoc.jar", javadoc);
+				for (String name : artifacts.keySet()) {
+					Processed p = await(results.get(name));
+					zipOut.putNextEntry(new JarEntry(name));
+					try {
+						p.data.writeTo(zipOut);
+					} finally {
+						p.data.delete();
+					}
+					zipOut.putNextEntry(new JarEntry(name + ".asc"));
+					zipOut.write(p.signature);
+					for (Map.Entry<String, String> checksum : p.checksums.entrySet()) {
+						zipOut.putNextEntry(new JarEntry(name + "." + checksum.getKey()));
+						zipOut.write(checksum.getValue().getBytes("US-ASCII"));
+					}
+				}
 				zipOut.closeEntry();
 				zipOut.close();
 			} finally {
@@ -147,22 +200,204 @@ public class CreateArtifactBundle extends Task {
 			throw new BuildException("I/O problem writing out file or reading in files", e, getLocation());
 		} catch (SigningException e) {
 			throw new BuildException("Problem signing files", e, getLocation());
+		} finally {
+			pool.shutdown();
+			// After a failure, wait for the other artifacts too, so none of their spill files are left behind.
+			for (Future<Processed> f : results.values()) {
+				try {
+					f.get().data.delete();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				} catch (ExecutionException ignore) {
+					// Already reported, or superseded by the failure being reported.
+				}
+			}
+		}
+	}
+	
+	private static final String SIGNERS = "ivyplusplus.signers";
+	
+	/**
+	 * Decrypted keys, kept until the build that loaded them finishes, so that a build that creates many bundles decrypts its key only once.
+	 * Sub builds share them with the build that started them.
+	 */
+	private static final class Signers implements SubBuildListener {
+		final Project project;
+		private final Map<String, DetachedSigner> loaded = new HashMap<String, DetachedSigner>();
+		private volatile boolean closed;
+		
+		Signers(Project project) {
+			this.project = project;
+		}
+		
+		synchronized DetachedSigner get(File key, String passphrase) throws IOException, SigningException {
+			// Not the passphrase itself: that would then sit in memory, in the clear, for the rest of the build.
+			String cacheKey = key.getCanonicalPath() + "\0" + key.lastModified() + "\0" + key.length() + "\0" + toHex(digest("SHA-256", passphrase.getBytes("UTF-8")));
+			DetachedSigner signer = loaded.get(cacheKey);
+			if (signer == null) {
+				signer = new CreateDetachedSignatures().loadSigner(key, passphrase);
+				if (!closed) loaded.put(cacheKey, signer);
+			}
+			return signer;
+		}
+		
+		synchronized void close() {
+			closed = true;
+			loaded.clear();
+		}
+		
+		@Override public void buildFinished(BuildEvent event) {
+			close();
+		}
+		
+		@Override public void subBuildFinished(BuildEvent event) {
+			if (event.getProject() == project) close();
+		}
+		
+		@Override public void buildStarted(BuildEvent event) {}
+		@Override public void subBuildStarted(BuildEvent event) {}
+		@Override public void targetStarted(BuildEvent event) {}
+		@Override public void targetFinished(BuildEvent event) {}
+		@Override public void taskStarted(BuildEvent event) {}
+		@Override public void taskFinished(BuildEvent event) {}
+		@Override public void messageLogged(BuildEvent event) {}
+	}
+	
+	private static synchronized Signers signers(Project p) {
+		Object ref = p.getReference(SIGNERS);
+		if (ref instanceof Signers && !((Signers) ref).closed) return (Signers) ref;
+		for (BuildListener listener : p.getBuildListeners()) {
+			if (listener instanceof Signers && !((Signers) listener).closed) return (Signers) listener;
+		}
+		Signers signers = new Signers(p);
+		p.addReference(SIGNERS, signers);
+		p.addBuildListener(signers);
+		return signers;
+	}
+	
+	private DetachedSigner loadSigner(File key, String passphrase) throws IOException, SigningException {
+		return signers(getProject()).get(key, passphrase);
+	}
+	
+	private static byte[] digest(String algorithm, byte[] data) throws SigningException {
+		try {
+			return MessageDigest.getInstance(algorithm).digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new SigningException(algorithm + " not available", e);
+		}
+	}
+	
+	/** File extension to {@code MessageDigest} algorithm. */
+	private static final Map<String, String> ALGORITHMS = new LinkedHashMap<String, String>();
+	static {
+		ALGORITHMS.put("md5", "MD5");
+		ALGORITHMS.put("sha1", "SHA-1");
+		ALGORITHMS.put("sha256", "SHA-256");
+		ALGORITHMS.put("sha512", "SHA-512");
+	}
+	
+	private Map<String, String> parseChecksums() {
+		Map<String, String> out = new LinkedHashMap<String, String>();
+		if (checksums == null) return out;
+		for (String name : checksums.split("[\\s,]+")) {
+			if (name.isEmpty()) continue;
+			String key = name.toLowerCase(Locale.ROOT).replace("-", "");
+			String algorithm = ALGORITHMS.get(key);
+			if (algorithm == null) throw new BuildException("Unknown checksum '" + name + "'; pick from " + ALGORITHMS.keySet(), getLocation());
+			out.put(key, algorithm);
+		}
+		return out;
+	}
+	
+	private static final class Processed {
+		Spill data;
+		byte[] signature;
+		final Map<String, String> checksums = new LinkedHashMap<String, String>();
+	}
+	
+	/**
+	 * Holds an artifact's content until it is its turn to go into the bundle: in memory if it is small, like the pom, and otherwise in a temporary
+	 * file, so that memory use doesn't grow with the size of the artifacts.
+	 */
+	private static final class Spill extends OutputStream {
+		private static final int MEMORY_LIMIT = 1 << 20;
+		
+		private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+		private File file;
+		private OutputStream fileOut;
+		
+		@Override public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		@Override public void write(byte[] b, int off, int len) throws IOException {
+			if (fileOut == null && memory.size() + len > MEMORY_LIMIT) {
+				file = File.createTempFile("ipp-bundle-", ".tmp");
+				fileOut = new BufferedOutputStream(new FileOutputStream(file), 65536);
+				memory.writeTo(fileOut);
+				memory = null;
+			}
+			if (fileOut != null) fileOut.write(b, off, len);
+			else memory.write(b, off, len);
+		}
+		
+		@Override public void close() throws IOException {
+			if (fileOut != null) fileOut.close();
+		}
+		
+		void writeTo(OutputStream out) throws IOException {
+			if (file == null) {
+				memory.writeTo(out);
+				return;
+			}
+			try (InputStream in = new FileInputStream(file)) {
+				byte[] b = new byte[65536];
+				for (int r = in.read(b); r != -1; r = in.read(b)) out.write(b, 0, r);
+			}
+		}
+		
+		void delete() {
+			if (file != null) file.delete();
 		}
 	}
 	
-	private void writeToJar(JarOutputStream zipOut, String filename, File data) throws IOException, SigningException {
+	/**
+	 * @param tokens If not {@code null}, tokens to replace in the artifact's content on the way in.
+	 */
+	private static Processed process(File artifact, Map<String, String> tokens, DetachedSigner signer, Map<String, String> algorithms) throws IOException, SigningException {
+		Processed p = new Processed();
+		InputStream raw = new BufferedInputStream(new FileInputStream(artifact), 65536);
+		if (tokens != null) raw = new TokenReplacingInputStream(raw, tokens);
+		// Whatever the signer reads is also kept, to go into the bundle; the file is only read this once.
+		Spill data = new Spill();
+		InputStream in = new DuplicatingInputStream(raw, data);
+		Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+		for (Map.Entry<String, String> e : algorithms.entrySet()) {
+			try {
+				MessageDigest md = MessageDigest.getInstance(e.getValue());
+				digests.put(e.getKey(), md);
+				in = new DigestInputStream(in, md);
+			} catch (NoSuchAlgorithmException ex) {
+				throw new SigningException(e.getValue() + " not available", ex);
+			}
+		}
 		ByteArrayOutputStream signature = new ByteArrayOutputStream();
-		zipOut.putNextEntry(new JarEntry(filename));
-		FileInputStream fis = new FileInputStream(data);
+		// The signer reads all of it, so by the time it's done, so are the CRC and the checksums.
 		try {
-			CreateDetachedSignatures signer = new CreateDetachedSignatures();
-			signer.signFile(new DuplicatingInputStream(fis, zipOut), signature, key, passphrase);
-			zipOut.putNextEntry(new JarEntry(filename + ".asc"));
-			zipOut.write(signature.toByteArray());
-			zipOut.closeEntry();
+			signer.sign(in, signature);
+		} catch (IOException | SigningException | RuntimeException e) {
+			data.close();
+			data.delete();
+			throw e;
 		} finally {
-			fis.close();
+			raw.close();
 		}
+		data.close();
+		p.data = data;
+		p.signature = signature.toByteArray();
+		for (Map.Entry<String, MessageDigest> e : digests.entrySet()) p.checksums.put(e.getKey(), toHex(e.getValue().digest()));
+		return p;
 	}
 	
 	private static class DuplicatingInputStream extends InputStream {
@@ -193,49 +428,25 @@ public class CreateArtifactBundle extends Task {
 		}
 	}
 	
-	private static byte[] readStream(InputStream in) throws IOException {
-		byte[] b = new byte[4096];
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		while (true) {
-			int r = in.read(b);
-			if (r == -1) return out.toByteArray();
-			out.write(b, 0, r);
-		}
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) sb.append(String.format("%02x", b & 0xFF));
+		return sb.toString();
 	}
 	
-	private static byte[] replaceVersion(byte[] in, String token_, String replacement_) {
+	private <T> T await(Future<T> future) throws IOException, SigningException {
 		try {
-			int start = 0;
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
-			byte[] token = token_.getBytes("US-ASCII");
-			byte[] replacement = replacement_.getBytes("US-ASCII");
-			
-			while (true) {
-				int idx = find(in, token, start);
-				if (idx == -1) break;
-				out.write(in, start, idx - start);
-				start = idx + token.length;
-				out.write(replacement);
-			}
-			
-			if (start < in.length) {
-				out.write(in, start, in.length - start);
-			}
-			
-			return out.toByteArray();
-		} catch (IOException e) {
-			throw new RuntimeException("IOException on mem-only operations", e);
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BuildException("Interrupted while signing", e, getLocation());
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof SigningException) throw (SigningException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new BuildException(cause, getLocation());
 		}
 	}
-	
-	private static int find(byte[] haystack, byte[] needle, int start) {
-		int pos = 0;
-		for (int i = start; i < haystack.length; i++) {
-			if (pos == needle.length) return i;
-			if (haystack[i] == needle[pos]) pos++;
-			else pos = 0;
-		}
-		
-		return -1;
-	}
 }
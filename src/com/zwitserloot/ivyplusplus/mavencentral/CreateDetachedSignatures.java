@@ -13,6 +13,15 @@ public class CreateDetachedSignatures {
 				Arrays.<Object>asList(file, keyFile, passphrase));
 	}
 	
+	/**
+	 * Reads and decrypts the signing key in {@code keyFile} once; the returned signer can then sign any number of files.
+	 */
+	public DetachedSigner loadSigner(File keyFile, String passphrase) throws SigningException, IOException {
+		return (DetachedSigner) InitializeBouncyCastle.call(getClass().getName() + "_", "loadSigner",
+				Arrays.<Class<?>>asList(File.class, String.class),
+				Arrays.<Object>asList(keyFile, passphrase));
+	}
+	
 	public void signFile(InputStream dataIn, OutputStream signOut, File keyFile, String passphrase) throws SigningException, IOException {
 		InitializeBouncyCastle.call(getClass().getName() + "_", "signFile",
 				Arrays.<Class<?>>asList(InputStream.class, OutputStream.class, File.class, String.class),
@@ -112,12 +112,51 @@ public class CreateDetachedSignatures_ {
 		}
 	}
 	
-	void signFile(InputStream fileData, PGPSecretKey signingKey, String passphrase, OutputStream out) throws IOException, NoSuchProviderException, PGPException, NoSuchAlgorithmException, SignatureException {
+	public DetachedSigner loadSigner(File keyFile, String passphrase) throws IOException, SigningException {
+		try {
+			PGPSecretKey key;
+			FileInputStream keyIn = new FileInputStream(keyFile);
+			try {
+				key = getSigningKey(keyIn, keyFile.getName());
+			} finally {
+				keyIn.close();
+			}
+			return new Signer(key.getPublicKey().getAlgorithm(), extractPrivateKey(key, passphrase));
+		} catch (PGPException e) {
+			throw new SigningException("Unknown signing problem: " + e.getMessage(), e);
+		}
+	}
+	
+	private static final class Signer implements DetachedSigner {
+		private final int algorithm;
+		private final PGPPrivateKey privKey;
+		
+		Signer(int algorithm, PGPPrivateKey privKey) {
+			this.algorithm = algorithm;
+			this.privKey = privKey;
+		}
+		
+		@Override public void sign(InputStream data, OutputStream signatureOut) throws IOException, SigningException {
+			try {
+				signFile(data, algorithm, privKey, signatureOut);
+			} catch (PGPException e) {
+				throw new SigningException("Unknown signing problem: " + e.getMessage(), e);
+			}
+		}
+	}
+	
+	private static PGPPrivateKey extractPrivateKey(PGPSecretKey signingKey, String passphrase) throws PGPException {
 		PGPDigestCalculatorProvider provider = new BcPGPDigestCalculatorProvider();
 		PBESecretKeyDecryptor decryptor = new BcPBESecretKeyDecryptorBuilder(provider).build(passphrase.toCharArray());
-		PGPPrivateKey privKey = signingKey.extractPrivateKey(decryptor);
-		PGPSignatureGenerator sigGen = new PGPSignatureGenerator(
-			new BcPGPContentSignerBuilder(signingKey.getPublicKey().getAlgorithm(), PGPUtil.SHA1));
+		return signingKey.extractPrivateKey(decryptor);
+	}
+	
+	void signFile(InputStream fileData, PGPSecretKey signingKey, String passphrase, OutputStream out) throws IOException, NoSuchProviderException, PGPException, NoSuchAlgorithmException, SignatureException {
+		signFile(fileData, signingKey.getPublicKey().getAlgorithm(), extractPrivateKey(signingKey, passphrase), out);
+	}
+	
+	private static void signFile(InputStream fileData, int algorithm, PGPPrivateKey privKey, OutputStream out) throws IOException, PGPException {
+		PGPSignatureGenerator sigGen = new PGPSignatureGenerator(new BcPGPContentSignerBuilder(algorithm, PGPUtil.SHA1));
 		sigGen.init(PGPSignature.BINARY_DOCUMENT, privKey);
 		out = new ArmoredOutputStream(out);
 		BCPGOutputStream bOut = new BCPGOutputStream(out);
@@ -0,0 +1,17 @@
+package com.zwitserloot.ivyplusplus.mavencentral;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A signing key that has already been read and decrypted, and can sign any number of files, from any number of threads at once.
+ * 
+ * Implemented inside the isolated bouncycastle loader, but this interface lives outside of it, so that callers can use it without reflection.
+ */
+public interface DetachedSigner {
+	/**
+	 * Reads {@code data} to the end and writes an ASCII armored detached signature for it to {@code signatureOut}.
+	 */
+	void sign(InputStream data, OutputStream signatureOut) throws IOException, SigningException;
+}
@@ -21,94 +21,209 @@
  */
 package com.zwitserloot.ivyplusplus.mavencentral;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.InvocationTargetException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
 import java.security.Security;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Loads the bouncycastle jars embedded in the ivyplusplus jar in their own classloader, and calls into the bridge classes that use them.
+ * 
+ * The jars are unpacked once, into a directory under {@code java.io.tmpdir} whose name includes a hash of their contents, and every later
+ * build (with the same ivyplusplus) loads them straight from there. If the per-user directory in the temp dir belongs to someone else,
+ * {@code ~/.ivy2/ipp-bc} is used instead.
+ */
 public class InitializeBouncyCastle {
-	private static AtomicBoolean initialized = new AtomicBoolean(false);
-	private static ClassLoader loader;
+	/** For each jar, the resource names it has been shipped under, newest first. */
+	private static final String[][] JARS = {
+		{"bcprov-jdk15on", "bcprov-jdk16"},
+		{"bcpg-jdk15on", "bcpg-jdk16"},
+		{"ipp-bc-bridges"},
+	};
+	
+	private static volatile ClassLoader loader;
+	private static final ConcurrentMap<String, MethodHandle> HANDLES = new ConcurrentHashMap<String, MethodHandle>();
 	
 	public static void init() throws SigningException {
-		if (initialized.getAndSet(true)) return;
-		
-		URL[] urls = new URL[3];
-		urls[0] = writeToTemp("bcprov-jdk16");
-		urls[1] = writeToTemp("bcpg-jdk16");
-		urls[2] = writeToTemp("ipp-bc-bridges");
+		if (loader != null) return;
+		synchronized (InitializeBouncyCastle.class) {
+			if (loader != null) return;
+			
+			String[] resources = new String[JARS.length];
+			for (int i = 0; i < JARS.length; i++) resources[i] = findResource(JARS[i]);
+			File dir = cacheDir(resources);
+			URL[] urls = new URL[resources.length];
+			for (int i = 0; i < resources.length; i++) urls[i] = unpack(resources[i], dir);
+			
+			ClassLoader l = new URLClassLoader(urls, InitializeBouncyCastle.class.getClassLoader());
+			try {
+				Class<?> provider = l.loadClass("org.bouncycastle.jce.provider.BouncyCastleProvider");
+				Security.addProvider((Provider) provider.newInstance());
+			} catch (ClassNotFoundException e) {
+				throw new SigningException("Included bouncycastle provider jar is corrupted", e);
+			} catch (IllegalAccessException e) {
+				throw new SigningException("Included bouncycastle provider jar is corrupted", e);
+			} catch (InstantiationException e) {
+				throw new SigningException("Included bouncycastle provider jar is corrupted", e);
+			}
+			loader = l;
+		}
+	}
+	
+	private static String findResource(String[] names) throws SigningException {
+		for (String name : names) {
+			String resource = "/" + name + ".jar";
+			if (InitializeBouncyCastle.class.getResource(resource) != null) return resource;
+		}
+		throw new SigningException("Can't find " + names[0] + ".jar; this ivyplusplus jar is corrupted");
+	}
+	
+	/**
+	 * The directory the jars are unpacked into. Its name is the {@code packhash} that the ivyplusplus build stores alongside the jars, or if that
+	 * isn't there (when running from a development build), a hash of the jars themselves.
+	 */
+	private static File cacheDir(String[] resources) throws SigningException {
+		String hash;
+		try {
+			byte[] packHash = readResource("/packhash");
+			if (packHash != null && packHash.length > 0) {
+				hash = new String(packHash, StandardCharsets.UTF_8).trim();
+			} else {
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				for (String resource : resources) digest.update(readResource(resource));
+				hash = toHex(digest.digest());
+			}
+		} catch (IOException e) {
+			throw new SigningException("Can't read the included bouncycastle crypto provider: " + e, e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new SigningException("SHA-256 not available", e);
+		}
+		if (hash.length() > 32) hash = hash.substring(0, 32);
 		
+		String user = System.getProperty("user.name", "");
+		File root = new File(System.getProperty("java.io.tmpdir"), "ipp-" + user.replaceAll("[^a-zA-Z0-9._-]", "_"));
 		try {
-			loader = new URLClassLoader(urls, InitializeBouncyCastle.class.getClassLoader());
-			Class<?> provider = loader.loadClass("org.bouncycastle.jce.provider.BouncyCastleProvider");
-			Security.addProvider((Provider) provider.newInstance());
-		} catch (ClassNotFoundException e) {
-			throw new SigningException("Included bouncycastle provider jar is corrupted", e);
-		} catch (IllegalAccessException e) {
-			throw new SigningException("Included bouncycastle provider jar is corrupted", e);
-		} catch (InstantiationException e) {
-			throw new SigningException("Included bouncycastle provider jar is corrupted", e);
+			boolean posix = root.toPath().getFileSystem().supportedFileAttributeViews().contains("posix");
+			if (!root.isDirectory()) {
+				if (posix) Files.createDirectories(root.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+				else Files.createDirectories(root.toPath());
+			}
+			// Whatever is in here ends up on a classpath; in a shared temp dir, don't load jars that someone else could have put there.
+			if (posix && !Files.getOwner(root.toPath()).getName().equals(user)) root = new File(System.getProperty("user.home"), ".ivy2/ipp-bc");
+		} catch (IOException e) {
+			throw new SigningException("Can't create " + root + ": " + e, e);
 		}
+		return new File(root, "bc-" + hash);
 	}
 	
-	private static URL writeToTemp(String resourceKey) throws SigningException {
+	/**
+	 * Unpacks the jar into the given directory, unless an earlier build already did. Jars are written under a temporary name and then moved into
+	 * place, so a jar that is there is complete, even if builds run concurrently or one was killed halfway.
+	 */
+	private static URL unpack(String resource, File dir) throws SigningException {
+		File file = new File(dir, resource.substring(1));
 		try {
-			File file = File.createTempFile(resourceKey, "jar");
-			file.deleteOnExit();
-			
-			FileOutputStream out = new FileOutputStream(file);
-			try {
-				InputStream in = InitializeBouncyCastle.class.getResourceAsStream("/" + resourceKey + ".jar");
+			if (!file.isFile()) {
+				if (!dir.isDirectory()) Files.createDirectories(dir.toPath());
+				File tmp = File.createTempFile(file.getName(), ".tmp", dir);
 				try {
-					byte[] b = new byte[4096];
-					while (true) {
-						int r = in.read(b);
-						if (r == -1) break;
-						out.write(b, 0, r);
+					try (InputStream in = InitializeBouncyCastle.class.getResourceAsStream(resource); OutputStream out = new FileOutputStream(tmp)) {
+						if (in == null) throw new IOException("Missing " + resource);
+						byte[] b = new byte[65536];
+						for (int r = in.read(b); r != -1; r = in.read(b)) out.write(b, 0, r);
+					}
+					try {
+						Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					} catch (AtomicMoveNotSupportedException e) {
+						Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
 					}
 				} finally {
-					if (in != null) in.close();
+					tmp.delete();
 				}
-			} finally {
-				out.close();
 			}
-			
 			return file.toURI().toURL();
 		} catch (IOException e) {
-			throw new SigningException("Can't unpack bouncycastle crypto provider to temp dir: " + e, e);
+			throw new SigningException("Can't unpack bouncycastle crypto provider to " + dir + ": " + e, e);
 		}
 	}
 	
-	public static Object call(String fqn, String methodName, List<Class<?>> types, List<Object> params) throws SigningException {
-		Throwable t;
-		try {
-			Class<?> c = loader.loadClass(fqn);
-			return c.getMethod(methodName, types.toArray(new Class<?>[0])).invoke(c.newInstance(), params.toArray(new Object[0]));
-		} catch (ClassNotFoundException e) {
-			t = e;
-		} catch (IllegalAccessException e) {
-			t = e;
-		} catch (InstantiationException e) {
-			t = e;
-		} catch (InvocationTargetException e) {
-			Throwable c = e.getCause();
-			if (c instanceof RuntimeException) throw (RuntimeException) c;
-			if (c instanceof Error) throw (Error) c;
-			if (c instanceof SigningException) throw (SigningException) c;
-			if (c == null) throw new RuntimeException();
-			throw new RuntimeException(c);
-		} catch (NoSuchMethodException e) {
-			t = e;
+	private static byte[] readResource(String resource) throws IOException {
+		try (InputStream in = InitializeBouncyCastle.class.getResourceAsStream(resource)) {
+			if (in == null) return null;
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] b = new byte[65536];
+			for (int r = in.read(b); r != -1; r = in.read(b)) out.write(b, 0, r);
+			return out.toByteArray();
+		}
+	}
+	
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) sb.append(String.format("%02x", b & 0xFF));
+		return sb.toString();
+	}
+	
+	/**
+	 * Calls {@code methodName} on a new instance of {@code fqn}, loaded with the bouncycastle classloader. The method is looked up the first
+	 * time it is called, and the resulting handle reused after that.
+	 */
+	public static Object call(String fqn, String methodName, List<Class<?>> types, List<Object> params) throws SigningException, IOException {
+		init();
+		String key = fqn + "#" + methodName + types;
+		MethodHandle handle = HANDLES.get(key);
+		if (handle == null) {
+			Throwable t;
+			try {
+				Class<?> c = loader.loadClass(fqn);
+				handle = MethodHandles.publicLookup().unreflect(c.getMethod(methodName, types.toArray(new Class<?>[0]))).bindTo(c.newInstance());
+				MethodHandle raced = HANDLES.putIfAbsent(key, handle);
+				if (raced != null) handle = raced;
+				t = null;
+			} catch (ClassNotFoundException e) {
+				t = e;
+			} catch (IllegalAccessException e) {
+				t = e;
+			} catch (InstantiationException e) {
+				t = e;
+			} catch (NoSuchMethodException e) {
+				t = e;
+			}
+			if (t != null) {
+				t.printStackTrace();
+				throw new SigningException("bouncycastle corrupted", t);
+			}
 		}
 		
-		t.printStackTrace();
-		throw new SigningException("bouncycastle corrupted", t);
+		try {
+			return handle.invokeWithArguments(params);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (SigningException e) {
+			throw e;
+		} catch (IOException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
 	}
 }
@@ -0,0 +1,121 @@
+package com.zwitserloot.ivyplusplus.mavencentral;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces tokens (such as {@code @VERSION@}) in a stream of bytes as it is read, in one pass.
+ * 
+ * Only as many bytes as the longest token are held at any time, however large the stream or however many tokens it contains. Replacements are
+ * not scanned for tokens again.
+ */
+final class TokenReplacingInputStream extends InputStream {
+	private final InputStream in;
+	private final List<byte[]> tokens = new ArrayList<byte[]>();
+	private final List<byte[]> replacements = new ArrayList<byte[]>();
+	/** Whether any token starts with this byte; anything else can be passed on without looking ahead. */
+	private final boolean[] starts = new boolean[256];
+	
+	private final byte[] lookahead;
+	private int laStart, laLen;
+	private boolean eof;
+	
+	private byte[] pending;
+	private int pendingPos;
+	
+	/**
+	 * @param replacements Token to replacement; both are encoded as UTF-8.
+	 */
+	TokenReplacingInputStream(InputStream in, Map<String, String> replacements) {
+		this.in = in;
+		List<String> keys = new ArrayList<String>(replacements.keySet());
+		// Longest first, so that of two tokens where one is the start of the other, the longer one wins.
+		Collections.sort(keys, (a, b) -> b.length() - a.length());
+		int max = 1;
+		for (String key : keys) {
+			if (key.isEmpty()) continue;
+			byte[] token = key.getBytes(StandardCharsets.UTF_8);
+			tokens.add(token);
+			this.replacements.add(replacements.get(key).getBytes(StandardCharsets.UTF_8));
+			starts[token[0] & 0xFF] = true;
+			max = Math.max(max, token.length);
+		}
+		this.lookahead = new byte[max];
+	}
+	
+	@Override public int read() throws IOException {
+		while (true) {
+			if (pending != null) {
+				if (pendingPos < pending.length) return pending[pendingPos++] & 0xFF;
+				pending = null;
+			}
+			fill(1);
+			if (laLen == 0) return -1;
+			int b = at(0);
+			if (starts[b]) {
+				fill(lookahead.length);
+				int match = match();
+				if (match != -1) {
+					consume(tokens.get(match).length);
+					pending = replacements.get(match);
+					pendingPos = 0;
+					continue;
+				}
+			}
+			consume(1);
+			return b;
+		}
+	}
+	
+	@Override public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		int n = 0;
+		while (n < len) {
+			int c = read();
+			if (c == -1) break;
+			b[off + n++] = (byte) c;
+		}
+		return n == 0 ? -1 : n;
+	}
+	
+	@Override public void close() throws IOException {
+		in.close();
+	}
+	
+	private int match() {
+		outer:
+		for (int i = 0; i < tokens.size(); i++) {
+			byte[] token = tokens.get(i);
+			if (token.length > laLen) continue;
+			for (int j = 0; j < token.length; j++) if ((byte) at(j) != token[j]) continue outer;
+			return i;
+		}
+		return -1;
+	}
+	
+	private int at(int idx) {
+		return lookahead[(laStart + idx) % lookahead.length] & 0xFF;
+	}
+	
+	private void consume(int count) {
+		laStart = (laStart + count) % lookahead.length;
+		laLen -= count;
+	}
+	
+	private void fill(int count) throws IOException {
+		while (laLen < count && !eof) {
+			int c = in.read();
+			if (c == -1) {
+				eof = true;
+			} else {
+				lookahead[(laStart + laLen) % lookahead.length] = (byte) c;
+				laLen++;
+			}
+		}
+	}
+}
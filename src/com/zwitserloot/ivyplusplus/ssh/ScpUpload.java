@@ -2,10 +2,13 @@ package com.zwitserloot.ivyplusplus.ssh;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
 
 public class ScpUpload extends Task {
 	private String to;
@@ -15,6 +18,10 @@ public class ScpUpload extends Task {
 	private String username;
 	private File keyFile;
 	private File knownHosts;
+	private String todir;
+	private int threads = 4;
+	private boolean failOnError = true;
+	private List<FileSet> fileSets = new ArrayList<FileSet>();
 	
 	public void setTo(String to) {
 		this.to = to;
@@ -44,9 +51,32 @@ public class ScpUpload extends Task {
 		this.knownHosts = knownHosts;
 	}
 	
+	public void setTodir(String todir) {
+		this.todir = todir;
+	}
+	
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	public void setFailonerror(boolean failOnError) {
+		this.failOnError = failOnError;
+	}
+	
+	public void addFileset(FileSet set) {
+		fileSets.add(set);
+	}
+	
 	@Override public void execute() throws BuildException {
-		if (to == null) throw new BuildException("'to' is mandatory.");
-		if (from == null) throw new BuildException("'from' is mandatory.");
+		if (fileSets.isEmpty()) {
+			if (to == null) throw new BuildException("'to' is mandatory.");
+			if (from == null) throw new BuildException("'from' is mandatory.");
+			if (todir != null) throw new BuildException("'todir' requires nested <fileset> elements; use 'to' with 'from'.");
+		} else {
+			if (todir == null) throw new BuildException("'todir' is mandatory with nested <fileset> elements.");
+			if (from != null || to != null) throw new BuildException("Use either 'from' and 'to', or 'todir' with nested <fileset> elements.");
+			if (threads < 1) throw new BuildException("'threads' must be at least 1.");
+		}
 		if (server == null) throw new BuildException("'server' is mandatory.");
 		if (username == null) throw new BuildException("'username' is mandatory.");
 		if (keyFile == null) throw new BuildException("'keyFile' is mandatory.");
@@ -60,6 +90,28 @@ public class ScpUpload extends Task {
 			log(e, Project.MSG_ERR);
 			throw new BuildException("Can't unpack ssh subsystem into build/ssh");
 		}
-		SshSubsystem.call(loc, getProject(), this, "com.zwitserloot.ivyplusplus.ssh.internal.ScpUpload", from, to, server, port, username, keyFile, knownHosts);
+		if (fileSets.isEmpty()) {
+			int result = SshSubsystem.call(loc, getProject(), this, "scpUpload", from, to, server, port, username, keyFile, knownHosts);
+			if (result != 0 && failOnError) throw new BuildException("Upload of " + from + " to " + server + " failed", getLocation());
+			return;
+		}
+		
+		List<Object> args = new ArrayList<Object>();
+		args.add(todir);
+		args.add(threads);
+		args.add(server);
+		args.add(port);
+		args.add(username);
+		args.add(keyFile);
+		args.add(knownHosts);
+		for (FileSet fs : fileSets) {
+			File dir = fs.getDir(getProject());
+			for (String name : fs.getDirectoryScanner(getProject()).getIncludedFiles()) {
+				args.add(new File(dir, name));
+				args.add(name.replace(File.separatorChar, '/'));
+			}
+		}
+		int result = SshSubsystem.call(loc, getProject(), this, "sftpUpload", args.toArray());
+		if (result != 0 && failOnError) throw new BuildException("Upload to " + server + ":" + todir + " failed", getLocation());
 	}
 }
@@ -2,6 +2,9 @@ package com.zwitserloot.ivyplusplus.ssh;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
@@ -10,10 +13,15 @@ import org.apache.tools.ant.Task;
 public class SshExec extends Task {
 	private String cmd;
 	private String server;
+	private String servers;
+	private int parallel = 8;
 	private int port;
 	private String username;
 	private File keyFile;
 	private File knownHosts;
+	private long timeout;
+	private boolean failOnError = true;
+	private String outputProperty;
 	
 	public void setCmd(String cmd) {
 		this.cmd = cmd;
@@ -23,6 +31,14 @@ public class SshExec extends Task {
 		this.server = server;
 	}
 	
+	public void setServers(String servers) {
+		this.servers = servers;
+	}
+	
+	public void setParallel(int parallel) {
+		this.parallel = parallel;
+	}
+	
 	public void setPort(int port) {
 		this.port = port;
 	}
@@ -39,11 +55,27 @@ public class SshExec extends Task {
 		this.knownHosts = knownHosts;
 	}
 	
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+	
+	public void setFailonerror(boolean failOnError) {
+		this.failOnError = failOnError;
+	}
+	
+	public void setOutputProperty(String outputProperty) {
+		this.outputProperty = outputProperty;
+	}
+	
 	@Override public void execute() throws BuildException {
 		if (cmd == null) throw new BuildException("'cmd' is mandatory.");
-		if (server == null) throw new BuildException("'server' is mandatory.");
+		if (server == null && servers == null) throw new BuildException("'server' (or 'servers') is mandatory.");
+		if (server != null && servers != null) throw new BuildException("Use either 'server' or 'servers', not both.");
+		if (servers != null && outputProperty != null) throw new BuildException("'outputProperty' can't be used with 'servers'.");
+		if (parallel < 1) throw new BuildException("'parallel' must be at least 1.");
 		if (username == null) throw new BuildException("'username' is mandatory.");
 		if (keyFile == null) throw new BuildException("'keyFile' is mandatory.");
+		if (timeout < 0) throw new BuildException("'timeout' can't be negative.");
 		if (port == 0) port = 22;
 		if (knownHosts == null) knownHosts = new File(getProject().getBaseDir(), "ssh.knownHosts");
 		
@@ -54,6 +86,22 @@ public class SshExec extends Task {
 			log(e, Project.MSG_ERR);
 			throw new BuildException("Can't unpack ssh subsystem into build/ssh");
 		}
-		SshSubsystem.call(loc, getProject(), this, "com.zwitserloot.ivyplusplus.ssh.internal.SshExec", cmd, server, port, username, keyFile, knownHosts);
+		if (servers != null) {
+			List<Object> args = new ArrayList<Object>();
+			Collections.addAll(args, cmd, port, username, keyFile, knownHosts, timeout, parallel);
+			for (String host : servers.split("[\\s,]+")) if (!host.isEmpty()) args.add(host);
+			if (args.size() == 7) throw new BuildException("'servers' doesn't list any server.");
+			int failed = SshSubsystem.call(loc, getProject(), this, "sshExecAll", args.toArray());
+			if (failed != 0 && failOnError) throw new BuildException("Remote command failed on " + failed + " of " + (args.size() - 7) + " server(s): " + cmd, getLocation());
+			return;
+		}
+		
+		final StringBuffer output = outputProperty == null ? null : new StringBuffer();
+		int exit = SshSubsystem.call(loc, getProject(), this, output == null ? null : line -> output.append(line).append('\n'), "sshExec", cmd, server, port, username, keyFile, knownHosts, timeout);
+		if (output != null) {
+			if (output.length() > 0) output.setLength(output.length() - 1);
+			getProject().setNewProperty(outputProperty, output.toString());
+		}
+		if (exit != 0 && failOnError) throw new BuildException("Remote command failed with exit code " + exit + ": " + cmd, getLocation());
 	}
 }
@@ -6,13 +6,23 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
 import org.apache.tools.ant.Project;
+import org.apache.tools.ant.SubBuildListener;
 import org.apache.tools.ant.Task;
-import org.apache.tools.ant.taskdefs.Java;
-import org.apache.tools.ant.taskdefs.Redirector;
-import org.apache.tools.ant.types.Path;
 
 public class SshSubsystem {
 	public static void unpack(File loc) throws IOException {
@@ -30,93 +40,153 @@ public class SshSubsystem {
 		}
 	}
 	
-	private static final class DummyInputStream extends InputStream {
-		@Override public int read() throws IOException {
-			return -1;
+	private static final String ENGINE = "com.zwitserloot.ivyplusplus.ssh.internal.SshEngine";
+	private static final String REFERENCE = "ivyplusplus.ssh.engine";
+	
+	/** Keyed on the canonical path of the unpacked subsystem; these live as long as ivyplusplus itself stays loaded. */
+	private static final Map<String, Isolated> LOADED = new HashMap<String, Isolated>();
+	
+	/**
+	 * The ssh subsystem, loaded in its own classloader that sees nothing but the JDK and the unpacked jars, so sshj and its dependencies never
+	 * clash with whatever else is on ant's classpath. The engine's entry points are looked up once.
+	 */
+	private static final class Isolated {
+		final ClassLoader loader;
+		final MethodHandle create, run, close;
+		
+		Isolated(File loc) throws IOException, ReflectiveOperationException {
+			List<URL> urls = new ArrayList<URL>();
+			urls.add(new File(loc, "classes").toURI().toURL());
+			File[] jars = new File(loc, "lib").listFiles();
+			if (jars != null) for (File jar : jars) {
+				if (jar.isFile() && jar.getName().endsWith(".jar")) urls.add(jar.toURI().toURL());
+			}
+			// Not the system classloader: under ant that one can see ant's own lib directory.
+			loader = new URLClassLoader(urls.toArray(new URL[0]), ClassLoader.getSystemClassLoader().getParent());
+			Class<?> engine = Class.forName(ENGINE, true, loader);
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			create = lookup.findConstructor(engine, MethodType.methodType(void.class)).asType(MethodType.methodType(Object.class));
+			run = lookup.findVirtual(engine, "run", MethodType.methodType(int.class, String.class, String[].class, Consumer.class))
+				.asType(MethodType.methodType(int.class, Object.class, String.class, String[].class, Consumer.class));
+			close = lookup.findVirtual(engine, "close", MethodType.methodType(void.class)).asType(MethodType.methodType(void.class, Object.class));
+		}
+	}
+	
+	/**
+	 * One engine per build, shared with its sub builds; it keeps its connections open until the build that created it finishes.
+	 */
+	private static final class Engine implements SubBuildListener {
+		final Project project;
+		final Isolated isolated;
+		final Object instance;
+		private volatile boolean closed;
+		
+		Engine(Project project, Isolated isolated) throws Throwable {
+			this.project = project;
+			this.isolated = isolated;
+			this.instance = (Object) isolated.create.invokeExact();
+		}
+		
+		synchronized void close() {
+			if (closed) return;
+			closed = true;
+			try {
+				isolated.close.invokeExact(instance);
+			} catch (Throwable t) {
+				project.log("Error closing ssh connections: " + t, Project.MSG_VERBOSE);
+			}
 		}
 		
-		@Override public int read(byte[] b) throws IOException {
-			return -1;
+		@Override public void buildFinished(BuildEvent event) {
+			close();
 		}
 		
-		@Override public int read(byte[] b, int off, int len) throws IOException {
-			return -1;
+		@Override public void subBuildFinished(BuildEvent event) {
+			if (event.getProject() == project) close();
 		}
+		
+		@Override public void buildStarted(BuildEvent event) {}
+		@Override public void subBuildStarted(BuildEvent event) {}
+		@Override public void targetStarted(BuildEvent event) {}
+		@Override public void targetFinished(BuildEvent event) {}
+		@Override public void taskStarted(BuildEvent event) {}
+		@Override public void taskFinished(BuildEvent event) {}
+		@Override public void messageLogged(BuildEvent event) {}
 	}
 	
-	private static final class CmdHandlerStream extends OutputStream {
-		private final StringBuilder line = new StringBuilder();
-		private final Project p;
-		private final Task t;
-		
-		CmdHandlerStream(Project p, Task t) {
-			this.p = p;
-			this.t = t;
+	private static synchronized Engine engine(File loc, Project p) {
+		Object ref = p.getReference(REFERENCE);
+		if (ref instanceof Engine && !((Engine) ref).closed) return (Engine) ref;
+		// Sub builds started with <ant> or <antcall> get the listeners of the build that started them, so they share its connections too.
+		for (BuildListener listener : p.getBuildListeners()) {
+			if (listener instanceof Engine && !((Engine) listener).closed) return (Engine) listener;
 		}
 		
-		@Override public void write(int b) throws IOException {
-			if (b == '\n') {
-				if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') line.setLength(line.length() - 1);
-				String txt = line.toString();
-				line.setLength(0);
-				if (txt.startsWith("T:")) {
-					p.log(t, txt.substring(2), Project.MSG_ERR);
-				} else if (txt.startsWith("V:")) {
-					p.log(t, txt.substring(2), Project.MSG_VERBOSE);
-				} else if (txt.startsWith("C:")) {
-					p.log(t, txt.substring(2), Project.MSG_INFO);
-				} else if (txt.trim().length() > 0) {
-					p.log(t, txt, Project.MSG_INFO);
-				}
-			} else {
-				line.append((char) b);
-			}
+		// The embedded sshj logs through slf4j-simple, which would otherwise print everything at info level and up to stderr.
+		if (System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null) System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+		// sshj's promises log every error they hand to whoever waits on them; those are reported already, or, for a timed out sshExec, expected.
+		if (System.getProperty("org.slf4j.simpleLogger.log.net.schmizz.concurrent.Promise") == null) System.setProperty("org.slf4j.simpleLogger.log.net.schmizz.concurrent.Promise", "off");
+		try {
+			String key = loc.getCanonicalPath();
+			Isolated isolated = LOADED.get(key);
+			if (isolated == null) LOADED.put(key, isolated = new Isolated(loc));
+			Engine engine = new Engine(p, isolated);
+			p.addReference(REFERENCE, engine);
+			p.addBuildListener(engine);
+			return engine;
+		} catch (Throwable t) {
+			throw new BuildException("Can't load the ssh subsystem from " + loc + ": " + t, t);
 		}
 	}
 	
-	public static void call(File loc, final Project p, final Task t, String classSpec, Object... args) {
-		final Java task = new Java() {
-			@Override protected void setupRedirector() {
-				this.redirector = new Redirector(this) {
-					private CmdHandlerStream out, err;
-					private InputStream in;
-					
-					@Override public void createStreams() {
-						out = new CmdHandlerStream(p, t);
-						err = new CmdHandlerStream(p, t);
-						in = new DummyInputStream();
-					}
-					@Override public OutputStream getOutputStream() {
-						return out;
-					}
-					@Override public OutputStream getErrorStream() {
-						return err;
-					}
-					@Override public InputStream getInputStream() {
-						return in;
-					}
-					@Override public void complete() throws IOException {
-						out.write('\n');
-						err.write('\n');
-					}
-				};
-				super.setupRedirector();
-			}
-		};
-		task.setProject(p);
-		task.setFork(true);
-		task.setTaskName("ssh");
-		task.createJvmarg().setValue("-Dorg.slf4j.simpleLogger.defaultLogLevel=warn");
-		Path cp = task.createClasspath();
-		cp.add(new Path(p, new File(loc, "classes").getAbsolutePath()));
-		for (File jar : new File(loc, "lib").listFiles()) {
-			if (jar.isFile() && jar.getName().endsWith(".jar")) cp.add(new Path(p, new File(new File(loc, "lib"), jar.getName()).getAbsolutePath()));
+	private static void log(Project p, Task t, String line) {
+		if (line.startsWith("T:")) {
+			p.log(t, line.substring(2), Project.MSG_ERR);
+		} else if (line.startsWith("E:")) {
+			p.log(t, line.substring(2), Project.MSG_WARN);
+		} else if (line.startsWith("V:")) {
+			p.log(t, line.substring(2), Project.MSG_VERBOSE);
+		} else if (line.startsWith("C:")) {
+			p.log(t, line.substring(2), Project.MSG_INFO);
+		} else if (line.trim().length() > 0) {
+			p.log(t, line, Project.MSG_INFO);
 		}
-		for (Object a : args) {
-			if (a instanceof File) task.createArg().setValue(((File) a).getAbsolutePath());
-			else task.createArg().setValue(a.toString());
+	}
+	
+	/**
+	 * Runs an ssh command in this build's engine, reusing the connection from an earlier command to the same server where possible.
+	 * 
+	 * @return 0 on success; the remote exit code of a command, or 1 if the command couldn't run at all.
+	 */
+	public static int call(File loc, Project p, Task t, String command, Object... args) {
+		return call(loc, p, t, null, command, args);
+	}
+	
+	/**
+	 * Like {@link #call(File, Project, Task, String, Object...)}, but the command's output is passed to {@code output} instead of being logged.
+	 * 
+	 * @param output Receives each line of output; may be called from other threads.
+	 */
+	public static int call(File loc, final Project p, final Task t, final Consumer<String> output, String command, Object... args) {
+		Engine engine = engine(loc, p);
+		String[] params = new String[args.length];
+		for (int i = 0; i < args.length; i++) params[i] = args[i] instanceof File ? ((File) args[i]).getAbsolutePath() : args[i].toString();
+		Consumer<String> log = line -> {
+			if (output != null && line.startsWith("C:")) output.accept(line.substring(2));
+			else log(p, t, line);
+		};
+		
+		Thread thread = Thread.currentThread();
+		ClassLoader old = thread.getContextClassLoader();
+		thread.setContextClassLoader(engine.isolated.loader);
+		try {
+			return (int) engine.isolated.run.invokeExact(engine.instance, command, params, log);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new BuildException(e, t.getLocation());
+		} finally {
+			thread.setContextClassLoader(old);
 		}
-		task.setClassname(classSpec);
-		task.execute();
 	}
 }
@@ -0,0 +1,104 @@
+package com.zwitserloot.ivyplusplus.ssh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
+
+public class SshSync extends Task {
+	private String server;
+	private int port;
+	private String username;
+	private File keyFile;
+	private File knownHosts;
+	private String todir;
+	private int threads = 4;
+	private File manifest;
+	private boolean failOnError = true;
+	private List<FileSet> fileSets = new ArrayList<FileSet>();
+	
+	public void setServer(String server) {
+		this.server = server;
+	}
+	
+	public void setPort(int port) {
+		this.port = port;
+	}
+	
+	public void setUsername(String username) {
+		this.username = username;
+	}
+	
+	public void setKeyFile(File keyFile) {
+		this.keyFile = keyFile;
+	}
+	
+	public void setKnownHosts(File knownHosts) {
+		this.knownHosts = knownHosts;
+	}
+	
+	public void setTodir(String todir) {
+		this.todir = todir;
+	}
+	
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	public void setManifest(File manifest) {
+		this.manifest = manifest;
+	}
+	
+	public void setFailonerror(boolean failOnError) {
+		this.failOnError = failOnError;
+	}
+	
+	public void addFileset(FileSet set) {
+		fileSets.add(set);
+	}
+	
+	@Override public void execute() throws BuildException {
+		if (todir == null) throw new BuildException("'todir' is mandatory.");
+		if (fileSets.isEmpty()) throw new BuildException("At least one nested <fileset> is mandatory.");
+		if (server == null) throw new BuildException("'server' is mandatory.");
+		if (username == null) throw new BuildException("'username' is mandatory.");
+		if (keyFile == null) throw new BuildException("'keyFile' is mandatory.");
+		if (threads < 1) throw new BuildException("'threads' must be at least 1.");
+		if (port == 0) port = 22;
+		if (knownHosts == null) knownHosts = new File(getProject().getBaseDir(), "ssh.knownHosts");
+		// Not in build/ssh: that one is wiped whenever a different ipp version unpacks itself there.
+		if (manifest == null) manifest = new File(getProject().getBaseDir(), "build/ssh-sync/" + (username + "@" + server + "_" + port + "_" + todir).replaceAll("[^A-Za-z0-9._@-]", "_") + ".manifest");
+		
+		File loc = new File(getProject().getBaseDir(), "build/ssh");
+		try {
+			SshSubsystem.unpack(loc);
+		} catch (IOException e) {
+			log(e, Project.MSG_ERR);
+			throw new BuildException("Can't unpack ssh subsystem into build/ssh");
+		}
+		
+		List<Object> args = new ArrayList<Object>();
+		args.add(todir);
+		args.add(threads);
+		args.add(manifest);
+		args.add(server);
+		args.add(port);
+		args.add(username);
+		args.add(keyFile);
+		args.add(knownHosts);
+		for (FileSet fs : fileSets) {
+			File dir = fs.getDir(getProject());
+			for (String name : fs.getDirectoryScanner(getProject()).getIncludedFiles()) {
+				args.add(new File(dir, name));
+				args.add(name.replace(File.separatorChar, '/'));
+			}
+		}
+		int result = SshSubsystem.call(loc, getProject(), this, "sshSync", args.toArray());
+		if (result != 0 && failOnError) throw new BuildException("Sync to " + server + ":" + todir + " failed", getLocation());
+	}
+}
@@ -2,12 +2,13 @@ package com.zwitserloot.ivyplusplus.ssh.internal;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.function.Consumer;
 
 import net.schmizz.sshj.SSHClient;
 import net.schmizz.sshj.xfer.FileSystemFile;
 
 public class ScpUpload {
-	public static void main(String[] args) {
+	static int execute(SshPool pool, String[] args, Consumer<String> log) throws IOException {
 		File from = new File(args[0]);
 		String to = args[1];
 		String server = args[2];
@@ -16,24 +17,12 @@ public class ScpUpload {
 		File keyFile = new File(args[5]);
 		File knownHosts = new File(args[6]);
 		
-		try {
-			execute(from, to, server, port, username, keyFile, knownHosts);
-		} catch (IOException e) {
-			System.out.println("T: " + e.getMessage());
-			System.exit(1);
-		}
+		return execute(pool, from, to, server, port, username, keyFile, knownHosts, log);
 	}
 	
-	public static void execute(File from, String to, String server, int port, String username, File keyFile, final File knownHosts) throws IOException {
-		SSHClient ssh = new SSHClient();
-		SshUtil.handleKnownHosts(ssh, knownHosts);
-		System.out.println("V:connecting to " + username + "@" + server + ":" + port + " with key file " + keyFile.getAbsolutePath());
-		ssh.connect(server, port);
-		if (!SshUtil.handleKeyFile(ssh, username, keyFile)) {
-			System.exit(0);
-			return;
-		}
+	public static int execute(SshPool pool, File from, String to, String server, int port, String username, File keyFile, File knownHosts, Consumer<String> log) throws IOException {
+		SSHClient ssh = pool.get(server, port, username, keyFile, knownHosts, log);
 		ssh.newSCPFileTransfer().upload(new FileSystemFile(from), to);
-		System.exit(0);
+		return 0;
 	}
 }
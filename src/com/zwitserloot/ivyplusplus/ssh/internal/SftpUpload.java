@@ -0,0 +1,327 @@
+package com.zwitserloot.ivyplusplus.ssh.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.IOUtils;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.Request;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.sftp.SFTPEngine;
+import net.schmizz.sshj.sftp.SFTPException;
+
+/**
+ * Uploads many files at once, over several SFTP channels of one (pooled) connection.
+ * 
+ * Files whose remote copy already has the same size and SHA-1 are skipped; the SHA-1s of the remote files are calculated by running
+ * {@code sha1sum} on the server, so on servers without it, files are always uploaded. Each file is written under a temporary name that includes
+ * its own SHA-1, and renamed into place once complete; if an upload is interrupted, the next one picks up where it left off.
+ */
+public class SftpUpload {
+	static final int BUFFER_SIZE = 32768;
+	static final int MAX_UNCONFIRMED_WRITES = 16;
+	/** Writes are pipelined, so after a crash the tail end of a partial file may have holes in it; resuming restarts this far before its end. */
+	private static final long RESUME_MARGIN = (long) BUFFER_SIZE * MAX_UNCONFIRMED_WRITES * 2;
+	/** Keeps the {@code sha1sum} command lines well under the limits of any shell. */
+	static final int MAX_COMMAND_LENGTH = 32768;
+	private static final String POSIX_RENAME = "posix-rename@openssh.com";
+	
+	static final class Item {
+		final File local;
+		final String remote;
+		final long length;
+		String sha1;
+		boolean candidate;
+		
+		Item(File local, String remote) {
+			this.local = local;
+			this.remote = remote;
+			this.length = local.length();
+		}
+	}
+	
+	/**
+	 * sshj doesn't expose the extensions the server announced, and some servers choke on extended requests they don't know about.
+	 */
+	static final class Engine extends SFTPEngine {
+		Engine(SSHClient ssh) throws IOException {
+			super(ssh);
+			init();
+		}
+		
+		boolean supports(String extension) {
+			return serverExtensions.containsKey(extension);
+		}
+	}
+	
+	static int execute(SshPool pool, String[] args, Consumer<String> log) throws IOException {
+		String todir = args[0];
+		int threads = Integer.parseInt(args[1]);
+		String server = args[2];
+		int port = Integer.parseInt(args[3]);
+		String username = args[4];
+		File keyFile = new File(args[5]);
+		File knownHosts = new File(args[6]);
+		List<Item> items = new ArrayList<Item>();
+		String base = todir.endsWith("/") ? todir : todir + "/";
+		for (int i = 7; i + 1 < args.length; i += 2) items.add(new Item(new File(args[i]), base + args[i + 1]));
+		
+		SSHClient ssh = pool.get(server, port, username, keyFile, knownHosts, log);
+		return execute(ssh, items, threads, log);
+	}
+	
+	private static int execute(SSHClient ssh, final List<Item> items, int threads, final Consumer<String> log) throws IOException {
+		if (items.isEmpty()) return 0;
+		int channelCount = Math.max(1, Math.min(threads, items.size()));
+		final BlockingQueue<SFTPClient> channels = new ArrayBlockingQueue<SFTPClient>(channelCount);
+		ForkJoinPool workers = new ForkJoinPool(channelCount);
+		try {
+			for (int i = 0; i < channelCount; i++) channels.add(new SFTPClient(new Engine(ssh)));
+			
+			// Hash the local files and look at the remote ones; only those with the right size are worth checksumming remotely.
+			List<Future<Void>> looking = new ArrayList<Future<Void>>();
+			for (final Item item : items) looking.add(workers.submit(new Callable<Void>() {
+				@Override public Void call() throws IOException, InterruptedException {
+					item.sha1 = sha1(item.local);
+					SFTPClient sftp = channels.take();
+					try {
+						FileAttributes attrs = sftp.statExistence(item.remote);
+						item.candidate = attrs != null && attrs.getSize() == item.length;
+					} finally {
+						channels.add(sftp);
+					}
+					return null;
+				}
+			}));
+			awaitAll(looking, items);
+			
+			List<String> candidates = new ArrayList<String>();
+			for (Item item : items) if (item.candidate) candidates.add(item.remote);
+			Map<String, String> remoteSums = remoteSha1(ssh, candidates, log);
+			
+			List<Item> todo = new ArrayList<Item>();
+			TreeSet<String> dirs = new TreeSet<String>();
+			for (Item item : items) {
+				if (item.candidate && item.sha1.equals(remoteSums.get(item.remote))) {
+					log.accept("V:" + item.remote + " is up to date");
+					continue;
+				}
+				todo.add(item);
+				int slash = item.remote.lastIndexOf('/');
+				if (slash > 0) dirs.add(item.remote.substring(0, slash));
+			}
+			
+			SFTPClient first = channels.take();
+			try {
+				for (String dir : dirs) {
+					// mkdirs creates parents too, so a directory that is the parent of another one in the set is skipped.
+					String next = dirs.higher(dir);
+					if (next == null || !next.startsWith(dir + "/")) first.mkdirs(dir);
+				}
+			} finally {
+				channels.add(first);
+			}
+			
+			final AtomicBoolean posixRename = new AtomicBoolean(true);
+			final AtomicInteger resumed = new AtomicInteger();
+			List<Future<Void>> uploading = new ArrayList<Future<Void>>();
+			for (final Item item : todo) uploading.add(workers.submit(new Callable<Void>() {
+				@Override public Void call() throws IOException, InterruptedException {
+					SFTPClient sftp = channels.take();
+					try {
+						if (upload(sftp, item, posixRename, log)) resumed.incrementAndGet();
+					} finally {
+						channels.add(sftp);
+					}
+					return null;
+				}
+			}));
+			awaitAll(uploading, todo);
+			
+			long bytes = 0;
+			for (Item item : todo) bytes += item.length;
+			log.accept("C:Uploaded " + todo.size() + " file(s), " + bytes + " bytes" + (resumed.get() > 0 ? " (" + resumed.get() + " resumed)" : "") +
+				"; " + (items.size() - todo.size()) + " file(s) were already up to date");
+			return 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} finally {
+			workers.shutdownNow();
+			for (SFTPClient sftp : channels) {
+				try {
+					sftp.close();
+				} catch (IOException ignore) {
+					// The connection itself stays open, and closing it later cleans up any stray channel.
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return {@code true} if an earlier, interrupted upload was resumed.
+	 */
+	static boolean upload(SFTPClient sftp, Item item, AtomicBoolean posixRename, Consumer<String> log) throws IOException {
+		boolean resumed = uploadPart(sftp, item, log);
+		rename(sftp, partName(item), item.remote, posixRename);
+		return resumed;
+	}
+	
+	/**
+	 * Where a file is uploaded to before it is renamed into place.
+	 */
+	static String partName(Item item) {
+		int slash = item.remote.lastIndexOf('/');
+		return item.remote.substring(0, slash + 1) + "." + item.remote.substring(slash + 1) + "." + item.sha1.substring(0, 16) + ".part";
+	}
+	
+	/**
+	 * Uploads the file to its {@link #partName(Item) part file}, but leaves it there.
+	 * 
+	 * @return {@code true} if an earlier, interrupted upload was resumed.
+	 */
+	static boolean uploadPart(SFTPClient sftp, Item item, Consumer<String> log) throws IOException {
+		String part = partName(item);
+		
+		// The partial file is named after the content it is a copy of, so what's in it is the start of this very file.
+		long offset = 0;
+		FileAttributes attrs = sftp.statExistence(part);
+		if (attrs != null) offset = attrs.getSize() > item.length ? 0 : Math.max(0, attrs.getSize() - RESUME_MARGIN);
+		if (offset > 0) log.accept("V:resuming upload of " + item.local + " at byte " + offset);
+		else log.accept("V:uploading " + item.local + " to " + item.remote);
+		
+		EnumSet<OpenMode> mode = offset > 0 ? EnumSet.of(OpenMode.WRITE, OpenMode.CREAT) : EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC);
+		try (RemoteFile file = sftp.open(part, mode); InputStream in = new FileInputStream(item.local)) {
+			for (long skipped = 0; skipped < offset;) {
+				long s = in.skip(offset - skipped);
+				if (s <= 0) throw new IOException("Can't skip to byte " + offset + " of " + item.local);
+				skipped += s;
+			}
+			OutputStream out = file.new RemoteFileOutputStream(offset, MAX_UNCONFIRMED_WRITES);
+			byte[] b = new byte[BUFFER_SIZE];
+			for (int r = in.read(b); r != -1; r = in.read(b)) out.write(b, 0, r);
+			out.close();
+		}
+		return offset > 0;
+	}
+	
+	/**
+	 * Moves the fully uploaded file into place. OpenSSH's {@code posix-rename} extension replaces the old file in one go; plain SFTP refuses to
+	 * rename onto an existing file, so on servers that don't announce the extension, the old file is removed first.
+	 */
+	static void rename(SFTPClient sftp, String from, String to, AtomicBoolean posixRename) throws IOException {
+		Engine engine = (Engine) sftp.getSFTPEngine();
+		if (posixRename.get() && engine.supports(POSIX_RENAME)) {
+			Request request = engine.newExtendedRequest(POSIX_RENAME);
+			request.putString(from).putString(to);
+			try {
+				engine.request(request).retrieve(engine.getTimeoutMs(), TimeUnit.MILLISECONDS).ensureStatusPacketIsOK();
+				return;
+			} catch (SFTPException e) {
+				if (sftp.statExistence(from) == null) throw e;
+				posixRename.set(false);
+			}
+		}
+		if (sftp.statExistence(to) != null) sftp.rm(to);
+		sftp.rename(from, to);
+	}
+	
+	/**
+	 * Runs {@code sha1sum} on the server, for as few command invocations as possible.
+	 * 
+	 * @return For each path, its SHA-1 in lowercase hex; paths it couldn't be calculated for are missing.
+	 */
+	static Map<String, String> remoteSha1(SSHClient ssh, List<String> paths, Consumer<String> log) {
+		Map<String, String> out = new HashMap<String, String>();
+		int from = 0;
+		while (from < paths.size()) {
+			StringBuilder cmd = new StringBuilder("sha1sum --");
+			int to = from;
+			while (to < paths.size() && (to == from || cmd.length() + paths.get(to).length() < MAX_COMMAND_LENGTH)) {
+				cmd.append(' ').append(quote(paths.get(to)));
+				to++;
+			}
+			try (Session session = ssh.startSession()) {
+				Command command = session.exec(cmd.toString());
+				BufferedReader br = new BufferedReader(new InputStreamReader(command.getInputStream(), "UTF-8"));
+				for (String line = br.readLine(); line != null; line = br.readLine()) {
+					// Names with odd characters are escaped, and the line then starts with a backslash; those are simply uploaded again.
+					int sep = line.indexOf("  ");
+					if (sep == 40 && !line.startsWith("\\")) out.put(line.substring(sep + 2), line.substring(0, sep).toLowerCase());
+				}
+				IOUtils.readFully(command.getErrorStream());
+				command.join(5, TimeUnit.SECONDS);
+			} catch (IOException e) {
+				log.accept("V:Can't checksum remote files (" + e.getMessage() + "); uploading them all");
+				return out;
+			}
+			from = to;
+		}
+		return out;
+	}
+	
+	/**
+	 * Quotes a path for the remote (POSIX) shell.
+	 */
+	static String quote(String path) {
+		return "'" + path.replace("'", "'\\''") + "'";
+	}
+	
+	static String sha1(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 not available", e);
+		}
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] b = new byte[BUFFER_SIZE];
+			for (int r = in.read(b); r != -1; r = in.read(b)) digest.update(b, 0, r);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte x : digest.digest()) sb.append(String.format("%02x", x & 0xFF));
+		return sb.toString();
+	}
+	
+	static void awaitAll(List<Future<Void>> futures, List<Item> items) throws IOException, InterruptedException {
+		IOException failure = null;
+		for (int i = 0; i < futures.size(); i++) {
+			// Wait for everything, even after a failure, so no channel is still in use once the channels are closed.
+			try {
+				futures.get(i).get();
+			} catch (ExecutionException e) {
+				Throwable c = e.getCause();
+				if (failure == null) failure = c instanceof IOException ? new IOException(items.get(i).local + ": " + c.getMessage(), c) : new IOException(items.get(i).local + ": " + c, c);
+			}
+		}
+		if (failure != null) throw failure;
+	}
+}
@@ -0,0 +1,44 @@
+package com.zwitserloot.ivyplusplus.ssh.internal;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Entry point into the ssh subsystem, which runs in its own classloader (see {@code SshSubsystem}). Only JDK types cross that boundary: arguments
+ * are passed as strings, and output comes back as lines prefixed with {@code T:} (error), {@code V:} (verbose), {@code C:} (command output) or {@code E:}
+ * (the command's standard error).
+ * 
+ * One engine lives for the duration of a build, and holds on to the connections it makes until it is closed.
+ */
+public class SshEngine {
+	private final SshPool pool = new SshPool();
+	
+	/**
+	 * @return 0 on success; the remote exit code of a command, 1 if the command couldn't run at all, or for sshExecAll, the number of hosts it failed on.
+	 */
+	public int run(String command, String[] args, Consumer<String> log) {
+		try {
+			switch (command) {
+			case "scpUpload":
+				return ScpUpload.execute(pool, args, log);
+			case "sftpUpload":
+				return SftpUpload.execute(pool, args, log);
+			case "sshSync":
+				return SshSync.execute(pool, args, log);
+			case "sshExec":
+				return SshExec.execute(pool, args, log);
+			case "sshExecAll":
+				return SshExec.executeAll(pool, args, log);
+			default:
+				throw new IllegalArgumentException("Unknown ssh command: " + command);
+			}
+		} catch (IOException e) {
+			log.accept("T: " + e.getMessage());
+			return 1;
+		}
+	}
+	
+	public void close() {
+		pool.close();
+	}
+}
@@ -5,53 +5,197 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import net.schmizz.sshj.SSHClient;
 import net.schmizz.sshj.connection.channel.direct.Session;
 import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.sshj.connection.channel.direct.Signal;
 
 public class SshExec {
-	public static void main(String[] args) {
+	static int execute(SshPool pool, String[] args, Consumer<String> log) throws IOException {
 		String cmd = args[0];
 		String server = args[1];
 		int port = Integer.parseInt(args[2]);
 		String username = args[3];
 		File keyFile = new File(args[4]);
 		File knownHosts = new File(args[5]);
+		long timeout = args.length > 6 ? Long.parseLong(args[6]) : 0;
 		
+		return execute(pool, cmd, server, port, username, keyFile, knownHosts, timeout, log);
+	}
+	
+	/**
+	 * Runs one command on a list of hosts, at most {@code parallel} at the same time. Every line of output is prefixed with the host it came from,
+	 * and once all are done, a summary is logged with, for every host, how the command ended and how long it took.
+	 * 
+	 * @return The number of hosts on which the command failed or couldn't be run.
+	 */
+	static int executeAll(final SshPool pool, String[] args, final Consumer<String> log) throws IOException {
+		final String cmd = args[0];
+		final int defaultPort = Integer.parseInt(args[1]);
+		final String username = args[2];
+		final File keyFile = new File(args[3]);
+		final File knownHosts = new File(args[4]);
+		final long timeout = Long.parseLong(args[5]);
+		int parallel = Integer.parseInt(args[6]);
+		final List<String> hosts = Arrays.asList(args).subList(7, args.length);
+		
+		final int[] exits = new int[hosts.size()];
+		final String[] errors = new String[hosts.size()];
+		final long[] millis = new long[hosts.size()];
+		ForkJoinPool workers = new ForkJoinPool(Math.max(1, Math.min(parallel, hosts.size())));
 		try {
-			execute(cmd, server, port, username, keyFile, knownHosts);
-		} catch (IOException e) {
-			System.out.println("T: " + e.getMessage());
-			System.exit(1);
+			List<Future<?>> running = new ArrayList<Future<?>>();
+			for (int i = 0; i < hosts.size(); i++) {
+				final int idx = i;
+				running.add(workers.submit(new Runnable() {
+					@Override public void run() {
+						String host = hosts.get(idx);
+						Consumer<String> prefixed = line -> log.accept(line.length() > 1 && line.charAt(1) == ':' ?
+							line.substring(0, 2) + "[" + host + "] " + line.substring(2) : "[" + host + "] " + line);
+						// host:port, but a lone IPv6 address has more than one colon and no port.
+						int colon = host.lastIndexOf(':');
+						boolean hasPort = colon > 0 && host.indexOf(':') == colon;
+						long start = System.nanoTime();
+						try {
+							exits[idx] = execute(pool, cmd, hasPort ? host.substring(0, colon) : host, hasPort ? Integer.parseInt(host.substring(colon + 1)) : defaultPort,
+								username, keyFile, knownHosts, timeout, prefixed);
+						} catch (IOException | RuntimeException e) {
+							errors[idx] = e.getMessage() == null ? e.toString() : e.getMessage();
+							prefixed.accept("T:" + errors[idx]);
+						}
+						millis[idx] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+					}
+				}));
+			}
+			for (Future<?> f : running) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					// Everything is caught in the task itself.
+					throw new IOException(e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while running " + cmd);
+		} finally {
+			workers.shutdownNow();
 		}
+		
+		int failed = 0;
+		for (int i = 0; i < hosts.size(); i++) {
+			boolean ok = errors[i] == null && exits[i] == 0;
+			if (!ok) failed++;
+			String outcome = errors[i] != null ? "FAILED (" + errors[i] + ")" : ok ? "OK" : "FAILED (exit code " + exits[i] + ")";
+			log.accept((ok ? "C:" : "T:") + hosts.get(i) + ": " + outcome + " in " + millis[i] + " ms");
+		}
+		log.accept((failed == 0 ? "C:" : "T:") + (hosts.size() - failed) + " of " + hosts.size() + " server(s) OK");
+		return failed;
 	}
 	
-	public static void execute(String cmd, String server, int port, String username, File keyFile, final File knownHosts) throws IOException {
-		SSHClient ssh = new SSHClient();
-		SshUtil.handleKnownHosts(ssh, knownHosts);
-		ssh.connect(server, port);
-		if (!SshUtil.handleKeyFile(ssh, username, keyFile)) {
-			System.exit(0);
-			return;
-		}
+	/**
+	 * Runs the command, passing on its output line by line as it comes in: standard out prefixed with {@code C:}, standard error with {@code E:}.
+	 * 
+	 * @param timeout In milliseconds; 0 to wait for as long as the command runs.
+	 * @return The remote exit code.
+	 * @throws IOException If the command couldn't run, or didn't finish in time, in which case it is killed and its session closed.
+	 */
+	public static int execute(SshPool pool, String cmd, String server, int port, String username, File keyFile, File knownHosts, long timeout, Consumer<String> log) throws IOException {
+		SSHClient ssh = pool.get(server, port, username, keyFile, knownHosts, log);
 		Session session = ssh.startSession();
-		System.out.println("V:Starting session to run cmd \"" + cmd + "\"");
-		Command command = session.exec(cmd);
-		InputStream in = command.getInputStream();
+		boolean abandoned = false;
 		try {
-			BufferedReader br = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-			for (String line = br.readLine(); line != null; line = br.readLine()) {
-				System.out.println("C:" + line);
+			log.accept("V:Starting session to run cmd \"" + cmd + "\"");
+			Command command = session.exec(cmd);
+			// Both streams are drained at the same time: a command that writes a lot to one of them stalls once the other one's window is full.
+			AtomicReference<IOException> failure = new AtomicReference<IOException>();
+			Thread out = pump(command.getInputStream(), "C:", log, failure);
+			Thread err = pump(command.getErrorStream(), "E:", log, failure);
+			long deadline = System.currentTimeMillis() + timeout;
+			try {
+				if (!await(out, timeout, deadline) || !await(err, timeout, deadline)) {
+					abandoned = true;
+					abandon(session, command);
+					throw new IOException("Remote command did not finish within " + timeout + " ms: " + cmd);
+				}
+				if (failure.get() != null) throw failure.get();
+				if (timeout > 0) command.join(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				else command.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while running " + cmd);
 			}
+			
+			Integer i = command.getExitStatus();
+			if (i == null) {
+				if (command.getExitSignal() == null) return 0;
+				log.accept("T:Remote process was killed by signal " + command.getExitSignal());
+				return 1;
+			}
+			if (i.intValue() != 0) log.accept("T:Remote process exited with error code " + i.intValue());
+			return i.intValue();
 		} finally {
-			in.close();
+			if (!abandoned) session.close();
 		}
-		command.join(5, TimeUnit.SECONDS);
-		Integer i = command.getExitStatus();
-		if (i == null) System.exit(0);
-		if (i.intValue() != 0) System.out.println("T:Remote process exited with error code " + i.intValue());
-		System.exit(0);
+	}
+	
+	/**
+	 * Asks the server to kill a command that ran out of time. Closing the session waits for the server to close its end, which some servers
+	 * only do once the command has exited, so that is left to a background thread.
+	 */
+	private static void abandon(final Session session, Command command) {
+		try {
+			command.signal(Signal.KILL);
+		} catch (IOException ignore) {
+			// Closing the session below is all that's left to try.
+		}
+		Thread t = new Thread("ssh close") {
+			@Override public void run() {
+				try {
+					session.close();
+				} catch (IOException ignore) {
+					// The connection itself is closed at the end of the build anyway.
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	private static boolean await(Thread pump, long timeout, long deadline) throws InterruptedException {
+		if (timeout <= 0) {
+			pump.join();
+			return true;
+		}
+		long left = deadline - System.currentTimeMillis();
+		if (left > 0) pump.join(left);
+		return !pump.isAlive();
+	}
+	
+	private static Thread pump(final InputStream in, final String prefix, final Consumer<String> log, final AtomicReference<IOException> failure) {
+		Thread t = new Thread("ssh " + (prefix.equals("C:") ? "stdout" : "stderr")) {
+			@Override public void run() {
+				try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+					for (String line = br.readLine(); line != null; line = br.readLine()) log.accept(prefix + line);
+				} catch (IOException e) {
+					failure.compareAndSet(null, e);
+				}
+			}
+		};
+		// A command that never finishes must not keep ant from exiting.
+		t.setDaemon(true);
+		t.start();
+		return t;
 	}
 }
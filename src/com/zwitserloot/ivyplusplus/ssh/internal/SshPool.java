@@ -0,0 +1,75 @@
+package com.zwitserloot.ivyplusplus.ssh.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * Keeps authenticated connections open, so that every upload and command for the same user, server, port and key file runs as a new channel
+ * over one connection, instead of each doing its own connect, key exchange and authentication.
+ * 
+ * Connections that the server has closed in the mean time are noticed and replaced.
+ */
+public class SshPool implements Closeable {
+	private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+	private volatile boolean closed;
+	
+	private static final class Slot {
+		SSHClient client;
+	}
+	
+	public SSHClient get(String server, int port, String username, File keyFile, File knownHosts, Consumer<String> log) throws IOException {
+		if (closed) throw new IOException("SSH connections have already been closed");
+		// The known hosts file is part of the key, so a connection is never reused by a task that would not have accepted the host itself.
+		String key = username + "@" + server + ":" + port + ":" + keyFile.getAbsolutePath() + ":" + knownHosts.getAbsolutePath();
+		Slot slot = slots.computeIfAbsent(key, k -> new Slot());
+		synchronized (slot) {
+			if (slot.client != null) {
+				if (slot.client.isConnected() && slot.client.isAuthenticated()) {
+					log.accept("V:reusing connection to " + username + "@" + server + ":" + port);
+					return slot.client;
+				}
+				log.accept("V:connection to " + username + "@" + server + ":" + port + " was closed; reconnecting");
+				disconnect(slot.client);
+				slot.client = null;
+			}
+			
+			SSHClient ssh = new SSHClient();
+			try {
+				SshUtil.handleKnownHosts(ssh, knownHosts, log);
+				log.accept("V:connecting to " + username + "@" + server + ":" + port + " with key file " + keyFile.getAbsolutePath());
+				ssh.connect(server, port);
+				SshUtil.handleKeyFile(ssh, username, keyFile);
+			} catch (IOException | RuntimeException e) {
+				disconnect(ssh);
+				throw e;
+			}
+			slot.client = ssh;
+			return ssh;
+		}
+	}
+	
+	@Override public void close() {
+		closed = true;
+		for (Slot slot : slots.values()) {
+			synchronized (slot) {
+				if (slot.client != null) disconnect(slot.client);
+				slot.client = null;
+			}
+		}
+		slots.clear();
+	}
+	
+	private static void disconnect(SSHClient ssh) {
+		try {
+			ssh.disconnect();
+		} catch (IOException ignore) {
+			// Nothing left to send to the server; it'll notice the socket closing.
+		}
+	}
+}
@@ -0,0 +1,606 @@
+package com.zwitserloot.ivyplusplus.ssh.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.IOUtils;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.Response.StatusCode;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.sftp.SFTPException;
+
+import com.zwitserloot.ivyplusplus.ssh.internal.SftpUpload.Item;
+
+/**
+ * Brings a remote directory in line with a set of local files, sending as little as possible.
+ * 
+ * A local manifest records, for every file that was pushed, its size, timestamp and SHA-1, plus rsync style checksums of each of its blocks.
+ * The manifest has an id, which is also stored on the server, in {@value #STAMP} in the target directory. As long as that still matches, the
+ * remote files are exactly what the manifest says they are, and if no local file changed either, syncing costs nothing but reading that one
+ * remote file. Otherwise the SHA-1s of the remote files are looked up with {@code sha1sum}.
+ * 
+ * A changed file whose remote copy is still the version in the manifest is sent as a delta: the parts of the new file that match a block of the
+ * old one, at any offset, are found with a rolling checksum and copied from the old file on the server itself (with GNU {@code dd}); only the
+ * rest is uploaded. Files that can't be sent as a delta are uploaded in full, the same way {@link SftpUpload} does. Either way, the new file is
+ * checked against the SHA-1 of the local file before it is renamed into place.
+ */
+public class SshSync {
+	static final String STAMP = ".ipp-sync";
+	private static final int MANIFEST_MAGIC = 0x89495053;
+	private static final int MANIFEST_VERSION = 1;
+	private static final int MIN_BLOCK_SIZE = 2048;
+	private static final int MAX_BLOCK_SIZE = 131072;
+	
+	static final class Entry {
+		long size, lastModified;
+		String sha1;
+		/** 0 if the file is too large to have block checksums. */
+		int blockSize;
+		int[] weak;
+		long[] strong;
+	}
+	
+	private static final class Manifest {
+		String id;
+		final Map<String, Entry> entries = new HashMap<String, Entry>();
+	}
+	
+	/** A piece of the new file: either copied from {@code oldOffset} in the old remote file, or, if that is -1, uploaded. */
+	static final class Op {
+		final long oldOffset, newOffset;
+		long length;
+		
+		Op(long oldOffset, long newOffset, long length) {
+			this.oldOffset = oldOffset;
+			this.newOffset = newOffset;
+			this.length = length;
+		}
+	}
+	
+	static int execute(SshPool pool, String[] args, Consumer<String> log) throws IOException {
+		String todir = args[0];
+		int threads = Integer.parseInt(args[1]);
+		File manifestFile = new File(args[2]);
+		String server = args[3];
+		int port = Integer.parseInt(args[4]);
+		String username = args[5];
+		File keyFile = new File(args[6]);
+		File knownHosts = new File(args[7]);
+		Map<String, File> files = new LinkedHashMap<String, File>();
+		for (int i = 8; i + 1 < args.length; i += 2) files.put(args[i + 1], new File(args[i]));
+		
+		SSHClient ssh = pool.get(server, port, username, keyFile, knownHosts, log);
+		return execute(ssh, todir.endsWith("/") ? todir : todir + "/", files, threads, manifestFile, log);
+	}
+	
+	private static int execute(final SSHClient ssh, String base, Map<String, File> files, int threads, File manifestFile, final Consumer<String> log) throws IOException {
+		final Manifest old = readManifest(manifestFile, log);
+		final Map<String, Entry> entries = Collections.synchronizedMap(new HashMap<String, Entry>());
+		final List<Item> items = new ArrayList<Item>();
+		final Map<Item, String> names = new IdentityHashMap<Item, String>();
+		boolean localChanges = false;
+		for (Map.Entry<String, File> e : files.entrySet()) {
+			Item item = new Item(e.getValue(), base + e.getKey());
+			items.add(item);
+			names.put(item, e.getKey());
+			Entry entry = old.entries.get(e.getKey());
+			// Same size and timestamp as when it was last pushed: the manifest's SHA-1 and block checksums still apply.
+			if (entry != null && entry.size == item.length && entry.lastModified == item.local.lastModified()) {
+				item.sha1 = entry.sha1;
+				entries.put(e.getKey(), entry);
+			} else {
+				localChanges = true;
+			}
+		}
+		
+		int channelCount = Math.max(1, Math.min(threads, items.size()));
+		final BlockingQueue<SFTPClient> channels = new ArrayBlockingQueue<SFTPClient>(channelCount);
+		ForkJoinPool workers = new ForkJoinPool(channelCount);
+		try {
+			SFTPClient first = new SFTPClient(new SftpUpload.Engine(ssh));
+			channels.add(first);
+			String stamp = readStamp(first, base + STAMP);
+			boolean stampMatches = stamp != null && stamp.equals(old.id);
+			if (stampMatches && !localChanges && items.size() == old.entries.size()) {
+				log.accept("C:" + base + " is up to date (" + items.size() + " file(s))");
+				return 0;
+			}
+			for (int i = 1; i < channelCount; i++) channels.add(new SFTPClient(new SftpUpload.Engine(ssh)));
+			
+			List<Future<Void>> hashing = new ArrayList<Future<Void>>();
+			List<Item> hashed = new ArrayList<Item>();
+			for (final Item item : items) {
+				if (item.sha1 != null) continue;
+				hashed.add(item);
+				hashing.add(workers.submit(new Callable<Void>() {
+					@Override public Void call() throws IOException {
+						item.sha1 = SftpUpload.sha1(item.local);
+						return null;
+					}
+				}));
+			}
+			SftpUpload.awaitAll(hashing, hashed);
+			
+			// What's on the server now: straight from the manifest if the stamp says it's still accurate, otherwise ask the server.
+			final Map<String, String> remoteSums = new HashMap<String, String>();
+			if (stampMatches) {
+				for (Item item : items) {
+					Entry entry = old.entries.get(names.get(item));
+					if (entry != null) remoteSums.put(item.remote, entry.sha1);
+				}
+			} else {
+				List<String> paths = new ArrayList<String>();
+				for (Item item : items) paths.add(item.remote);
+				remoteSums.putAll(SftpUpload.remoteSha1(ssh, paths, log));
+			}
+			
+			// From here on the manifest no longer describes the server; if this sync doesn't finish, the next one must not trust it.
+			if (stamp != null) first.rm(base + STAMP);
+			
+			final Set<Item> changed = Collections.newSetFromMap(new IdentityHashMap<Item, Boolean>());
+			List<Item> todo = new ArrayList<Item>();
+			TreeSet<String> dirs = new TreeSet<String>();
+			for (Item item : items) {
+				if (!item.sha1.equals(remoteSums.get(item.remote))) {
+					changed.add(item);
+					int slash = item.remote.lastIndexOf('/');
+					if (slash > 0) dirs.add(item.remote.substring(0, slash));
+				}
+				// Also files that are the same on both ends, but aren't in the manifest yet: they need block checksums for next time.
+				if (changed.contains(item) || !entries.containsKey(names.get(item))) todo.add(item);
+			}
+			for (String dir : dirs) {
+				String next = dirs.higher(dir);
+				if (next == null || !next.startsWith(dir + "/")) first.mkdirs(dir);
+			}
+			
+			final AtomicBoolean posixRename = new AtomicBoolean(true);
+			final AtomicBoolean remoteCopy = new AtomicBoolean(true);
+			final AtomicInteger deltas = new AtomicInteger();
+			final AtomicLong uploaded = new AtomicLong();
+			// Uploaded in full, but not yet checked and renamed into place; that is done for all of them at once, at the end.
+			final List<Item> parts = Collections.synchronizedList(new ArrayList<Item>());
+			List<Future<Void>> syncing = new ArrayList<Future<Void>>();
+			for (final Item item : todo) syncing.add(workers.submit(new Callable<Void>() {
+				@Override public Void call() throws IOException, InterruptedException {
+					String name = names.get(item);
+					try (FileChannel fc = FileChannel.open(item.local.toPath(), StandardOpenOption.READ)) {
+						ByteBuffer buf = item.length <= Integer.MAX_VALUE ? fc.map(FileChannel.MapMode.READ_ONLY, 0, item.length) : null;
+						Entry entry = entries.get(name);
+						if (entry == null) entry = signatures(item, buf);
+						
+						if (changed.contains(item)) {
+							Entry previous = old.entries.get(name);
+							boolean oldIsKnown = buf != null && previous != null && previous.blockSize > 0 && previous.sha1.equals(remoteSums.get(item.remote));
+							SFTPClient sftp = channels.take();
+							try {
+								long bytes = oldIsKnown && remoteCopy.get() ? sendDelta(ssh, sftp, item, buf, previous, remoteCopy, posixRename, log) : -1;
+								if (bytes == -1) {
+									SftpUpload.uploadPart(sftp, item, log);
+									parts.add(item);
+									bytes = item.length;
+								} else {
+									deltas.incrementAndGet();
+								}
+								uploaded.addAndGet(bytes);
+							} finally {
+								channels.add(sftp);
+							}
+						}
+						entries.put(name, entry);
+					}
+					return null;
+				}
+			}));
+			SftpUpload.awaitAll(syncing, todo);
+			
+			List<String> partNames = new ArrayList<String>();
+			for (Item item : parts) partNames.add(SftpUpload.partName(item));
+			final Map<String, String> partSums = SftpUpload.remoteSha1(ssh, partNames, log);
+			List<Future<Void>> renaming = new ArrayList<Future<Void>>();
+			for (final Item item : parts) renaming.add(workers.submit(new Callable<Void>() {
+				@Override public Void call() throws IOException, InterruptedException {
+					String part = SftpUpload.partName(item);
+					String sum = partSums.get(part);
+					SFTPClient sftp = channels.take();
+					try {
+						// No sum means no sha1sum on the server; the delta path can't have been used then either, so there's nothing to check with.
+						if (sum != null && !sum.equals(item.sha1)) {
+							sftp.rm(part);
+							throw new IOException("the uploaded copy doesn't match: SHA-1 " + sum + " instead of " + item.sha1);
+						}
+						SftpUpload.rename(sftp, part, item.remote, posixRename);
+					} finally {
+						channels.add(sftp);
+					}
+					return null;
+				}
+			}));
+			SftpUpload.awaitAll(renaming, parts);
+			
+			Manifest updated = new Manifest();
+			updated.id = UUID.randomUUID().toString();
+			for (Item item : items) updated.entries.put(names.get(item), entries.get(names.get(item)));
+			writeManifest(manifestFile, updated);
+			writeStamp(first, base + STAMP, updated.id, posixRename);
+			
+			long total = 0;
+			for (Item item : changed) total += item.length;
+			log.accept("C:Synced " + base + ": " + changed.size() + " of " + items.size() + " file(s) changed" +
+				(deltas.get() > 0 ? " (" + deltas.get() + " sent as delta)" : "") + "; uploaded " + uploaded.get() + " of " + total + " bytes");
+			return 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} finally {
+			workers.shutdownNow();
+			for (SFTPClient sftp : channels) {
+				try {
+					sftp.close();
+				} catch (IOException ignore) {
+					// The connection itself stays open, and closing it later cleans up any stray channel.
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Builds the new file on the server next to the old one, from pieces of the old file and uploaded data, and moves it into place.
+	 * 
+	 * @return How many bytes were uploaded, or -1 if the file could not be sent as a delta.
+	 */
+	private static long sendDelta(SSHClient ssh, SFTPClient sftp, Item item, ByteBuffer buf, Entry previous, AtomicBoolean remoteCopy, AtomicBoolean posixRename, Consumer<String> log) throws IOException {
+		List<Op> ops = delta(buf, (int) item.length, previous);
+		long literal = 0;
+		int copies = 0;
+		for (Op op : ops) {
+			if (op.oldOffset == -1) literal += op.length;
+			else copies++;
+		}
+		if (copies == 0) return -1;
+		
+		int slash = item.remote.lastIndexOf('/');
+		String part = item.remote.substring(0, slash + 1) + "." + item.remote.substring(slash + 1) + "." + item.sha1.substring(0, 16) + ".delta";
+		log.accept("V:sending " + item.local + " as delta: " + literal + " of " + item.length + " bytes changed");
+		
+		try (RemoteFile file = sftp.open(part, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC))) {
+			byte[] b = new byte[SftpUpload.BUFFER_SIZE];
+			for (Op op : ops) {
+				if (op.oldOffset != -1) continue;
+				OutputStream out = file.new RemoteFileOutputStream(op.newOffset, SftpUpload.MAX_UNCONFIRMED_WRITES);
+				ByteBuffer piece = buf.duplicate();
+				((Buffer) piece).position((int) op.newOffset);
+				for (long left = op.length; left > 0;) {
+					int n = (int) Math.min(b.length, left);
+					piece.get(b, 0, n);
+					out.write(b, 0, n);
+					left -= n;
+				}
+				out.close();
+			}
+		}
+		
+		// The copies, with the check at the very end, as few commands as possible.
+		List<String> commands = new ArrayList<String>();
+		StringBuilder cmd = new StringBuilder();
+		for (Op op : ops) {
+			if (op.oldOffset == -1) continue;
+			String dd = "dd if=" + SftpUpload.quote(item.remote) + " of=" + SftpUpload.quote(part) + " bs=65536 iflag=skip_bytes,count_bytes oflag=seek_bytes conv=notrunc skip=" +
+				op.oldOffset + " seek=" + op.newOffset + " count=" + op.length + " 2>/dev/null";
+			if (cmd.length() > 0 && cmd.length() + dd.length() > SftpUpload.MAX_COMMAND_LENGTH) {
+				commands.add(cmd.toString());
+				cmd.setLength(0);
+			}
+			if (cmd.length() > 0) cmd.append(" && ");
+			cmd.append(dd);
+		}
+		cmd.append(" && sha1sum -- ").append(SftpUpload.quote(part));
+		commands.add(cmd.toString());
+		
+		String output = null;
+		for (String command : commands) {
+			output = run(ssh, command);
+			if (output == null) {
+				// Most likely not GNU dd; no point in trying that again for the other files.
+				log.accept("V:Can't copy blocks on the server; uploading files in full");
+				remoteCopy.set(false);
+				sftp.rm(part);
+				return -1;
+			}
+		}
+		if (!output.startsWith(item.sha1 + " ")) {
+			log.accept("V:" + item.remote + " did not come out right when sent as a delta; uploading it in full");
+			sftp.rm(part);
+			return -1;
+		}
+		SftpUpload.rename(sftp, part, item.remote, posixRename);
+		return literal;
+	}
+	
+	/**
+	 * The rsync algorithm: slides a window the size of the old file's blocks over the new file, and wherever the rolling checksum (and then the
+	 * strong one) of the window matches a block of the old file, that block is reused.
+	 */
+	static List<Op> delta(ByteBuffer buf, int n, Entry old) {
+		List<Op> ops = new ArrayList<Op>();
+		int size = old.blockSize;
+		int blocks = old.weak.length;
+		// The old file's last block is usually shorter than the others, and can only match at the very end.
+		int tail = (int) (old.size - (long) (blocks - 1) * size);
+		int full = tail == size ? blocks : blocks - 1;
+		Map<Integer, List<Integer>> index = new HashMap<Integer, List<Integer>>();
+		for (int i = 0; i < full; i++) {
+			List<Integer> list = index.get(old.weak[i]);
+			if (list == null) index.put(old.weak[i], list = new ArrayList<Integer>(1));
+			list.add(i);
+		}
+		
+		MessageDigest md5 = md5();
+		int literalStart = 0;
+		int pos = 0;
+		if (full > 0 && n >= size) {
+			int a = 0, b = 0;
+			for (int i = 0; i < size; i++) {
+				int x = buf.get(i) & 0xFF;
+				a += x;
+				b += (size - i) * x;
+			}
+			while (true) {
+				List<Integer> candidates = index.get((a & 0xFFFF) | (b << 16));
+				int match = -1;
+				if (candidates != null) {
+					long strong = strong(md5, buf, pos, size);
+					for (int block : candidates) if (old.strong[block] == strong) {
+						match = block;
+						break;
+					}
+				}
+				if (match != -1) {
+					if (pos > literalStart) ops.add(new Op(-1, literalStart, pos - literalStart));
+					addCopy(ops, (long) match * size, pos, size);
+					pos += size;
+					literalStart = pos;
+					if (pos + size > n) break;
+					a = 0;
+					b = 0;
+					for (int i = 0; i < size; i++) {
+						int x = buf.get(pos + i) & 0xFF;
+						a += x;
+						b += (size - i) * x;
+					}
+					continue;
+				}
+				if (pos + size >= n) break;
+				int out = buf.get(pos) & 0xFF, in = buf.get(pos + size) & 0xFF;
+				a += in - out;
+				b += a - size * out;
+				pos++;
+			}
+		}
+		if (tail > 0 && tail < size && n - literalStart >= tail) {
+			int at = n - tail;
+			if (weak(buf, at, tail) == old.weak[blocks - 1] && strong(md5, buf, at, tail) == old.strong[blocks - 1]) {
+				if (at > literalStart) ops.add(new Op(-1, literalStart, at - literalStart));
+				addCopy(ops, (long) (blocks - 1) * size, at, tail);
+				literalStart = n;
+			}
+		}
+		if (literalStart < n) ops.add(new Op(-1, literalStart, n - literalStart));
+		return ops;
+	}
+	
+	private static void addCopy(List<Op> ops, long oldOffset, long newOffset, long length) {
+		Op last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+		if (last != null && last.oldOffset != -1 && last.oldOffset + last.length == oldOffset && last.newOffset + last.length == newOffset) last.length += length;
+		else ops.add(new Op(oldOffset, newOffset, length));
+	}
+	
+	static Entry signatures(Item item, ByteBuffer buf) {
+		Entry entry = new Entry();
+		entry.size = item.length;
+		entry.lastModified = item.local.lastModified();
+		entry.sha1 = item.sha1;
+		if (buf == null) {
+			entry.weak = new int[0];
+			entry.strong = new long[0];
+			return entry;
+		}
+		
+		int size = (int) Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, ((long) Math.sqrt(item.length) + 1023) & ~1023L));
+		int blocks = (int) ((item.length + size - 1) / size);
+		entry.blockSize = size;
+		entry.weak = new int[blocks];
+		entry.strong = new long[blocks];
+		MessageDigest md5 = md5();
+		for (int i = 0; i < blocks; i++) {
+			int off = i * size;
+			int len = (int) Math.min(size, item.length - off);
+			entry.weak[i] = weak(buf, off, len);
+			entry.strong[i] = strong(md5, buf, off, len);
+		}
+		return entry;
+	}
+	
+	private static int weak(ByteBuffer buf, int off, int len) {
+		int a = 0, b = 0;
+		for (int i = 0; i < len; i++) {
+			int x = buf.get(off + i) & 0xFF;
+			a += x;
+			b += (len - i) * x;
+		}
+		return (a & 0xFFFF) | (b << 16);
+	}
+	
+	private static long strong(MessageDigest md5, ByteBuffer buf, int off, int len) {
+		ByteBuffer piece = buf.duplicate();
+		((Buffer) piece).limit(off + len);
+		((Buffer) piece).position(off);
+		md5.update(piece);
+		byte[] d = md5.digest();
+		long out = 0;
+		for (int i = 0; i < 8; i++) out = (out << 8) | (d[i] & 0xFF);
+		return out;
+	}
+	
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 not available", e);
+		}
+	}
+	
+	/**
+	 * @return What the command printed, or {@code null} if it failed.
+	 */
+	private static String run(SSHClient ssh, String command) throws IOException {
+		try (Session session = ssh.startSession()) {
+			Command c = session.exec(command);
+			String out = IOUtils.readFully(c.getInputStream()).toString("UTF-8");
+			IOUtils.readFully(c.getErrorStream());
+			c.join(30, TimeUnit.SECONDS);
+			Integer status = c.getExitStatus();
+			return status != null && status.intValue() == 0 ? out : null;
+		}
+	}
+	
+	private static String readStamp(SFTPClient sftp, String path) throws IOException {
+		try (RemoteFile file = sftp.open(path, EnumSet.of(OpenMode.READ))) {
+			byte[] b = new byte[256];
+			int n = 0;
+			for (int r = file.read(0, b, 0, b.length); r > 0 && n < b.length; r = file.read(n, b, n, b.length - n)) n += r;
+			return new String(b, 0, n, StandardCharsets.UTF_8).trim();
+		} catch (SFTPException e) {
+			if (e.getStatusCode() == StatusCode.NO_SUCH_FILE) return null;
+			throw e;
+		}
+	}
+	
+	private static void writeStamp(SFTPClient sftp, String path, String id, AtomicBoolean posixRename) throws IOException {
+		String tmp = path + ".tmp";
+		try (RemoteFile file = sftp.open(tmp, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC))) {
+			byte[] b = (id + "\n").getBytes(StandardCharsets.UTF_8);
+			file.write(0, b, 0, b.length);
+		}
+		SftpUpload.rename(sftp, tmp, path, posixRename);
+	}
+	
+	/**
+	 * @return The manifest, or an empty one if there is none yet, or it can't be read; that only means everything is checked with the server.
+	 */
+	private static Manifest readManifest(File file, Consumer<String> log) {
+		Manifest out = new Manifest();
+		if (!file.isFile()) return out;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MANIFEST_MAGIC || in.readInt() != MANIFEST_VERSION) {
+				log.accept("V:Ignoring " + file + "; it was written by another version");
+				return out;
+			}
+			Manifest m = new Manifest();
+			m.id = in.readUTF();
+			for (int i = in.readInt(); i > 0; i--) {
+				String name = in.readUTF();
+				Entry entry = new Entry();
+				entry.size = in.readLong();
+				entry.lastModified = in.readLong();
+				entry.sha1 = in.readUTF();
+				entry.blockSize = in.readInt();
+				int blocks = in.readInt();
+				entry.weak = new int[blocks];
+				entry.strong = new long[blocks];
+				for (int j = 0; j < blocks; j++) {
+					entry.weak[j] = in.readInt();
+					entry.strong[j] = in.readLong();
+				}
+				m.entries.put(name, entry);
+			}
+			return m;
+		} catch (IOException e) {
+			log.accept("V:Ignoring " + file + ": " + e);
+			return out;
+		}
+	}
+	
+	/**
+	 * Writes the manifest under a temporary name, then renames it into place, so that it is never seen half written.
+	 */
+	private static void writeManifest(File file, Manifest manifest) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory()) Files.createDirectories(dir.toPath());
+		File tmp = new File(dir, file.getName() + ".tmp");
+		try {
+			try (FileOutputStream fos = new FileOutputStream(tmp)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeInt(MANIFEST_MAGIC);
+				out.writeInt(MANIFEST_VERSION);
+				out.writeUTF(manifest.id);
+				out.writeInt(manifest.entries.size());
+				for (Map.Entry<String, Entry> e : manifest.entries.entrySet()) {
+					Entry entry = e.getValue();
+					out.writeUTF(e.getKey());
+					out.writeLong(entry.size);
+					out.writeLong(entry.lastModified);
+					out.writeUTF(entry.sha1);
+					out.writeInt(entry.blockSize);
+					out.writeInt(entry.weak.length);
+					for (int j = 0; j < entry.weak.length; j++) {
+						out.writeInt(entry.weak[j]);
+						out.writeLong(entry.strong[j]);
+					}
+				}
+				out.flush();
+				fos.getFD().sync();
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+	}
+}
@@ -10,6 +10,7 @@ import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 import org.bouncycastle.util.encoders.Base64;
 
@@ -58,33 +59,32 @@ class SshUtil {
 		return out;
 	}
 
-	public static void handleKnownHosts(SSHClient ssh, final File knownHosts) throws IOException {
+	public static void handleKnownHosts(SSHClient ssh, final File knownHosts, final Consumer<String> log) throws IOException {
 		final List<KnownHost> knownHostsList = readKnownHosts(knownHosts);
 		ssh.addHostKeyVerifier(new HostKeyVerifier() {
 			@Override public boolean verify(String hostName, int port, PublicKey key) {
 				String b64 = Base64.toBase64String(key.getEncoded());
 				for (KnownHost kn : knownHostsList) {
 					if (kn.hostName.equals(hostName) && kn.port == port && kn.algorithm.equals(key.getAlgorithm()) && kn.format.equals(key.getFormat()) && kn.base64.equals(b64)) {
-						System.out.println("V:host signature matched in known hosts file " + knownHosts.getAbsolutePath());
+						log.accept("V:host signature matched in known hosts file " + knownHosts.getAbsolutePath());
 						return true;
 					}
 				}
-				System.out.println("T:Known hosts file does not list this server. Edit " + knownHosts.getAbsolutePath() + " and add this line:");
-				System.out.println("T:" + hostName + ":" + port + ":" + key.getAlgorithm() + ":" + key.getFormat() + ":" + b64);
+				log.accept("T:Known hosts file does not list this server. Edit " + knownHosts.getAbsolutePath() + " and add this line:");
+				log.accept("T:" + hostName + ":" + port + ":" + key.getAlgorithm() + ":" + key.getFormat() + ":" + b64);
 				return false;
 			}
 		});
 	}
 	
-	public static boolean handleKeyFile(SSHClient ssh, String username, File keyFile) throws IOException {
+	public static void handleKeyFile(SSHClient ssh, String username, File keyFile) throws IOException {
 		KeyFormat format = KeyProviderUtil.detectKeyFileFormat(keyFile);
 		KeyProvider kp;
 		
 		switch (format) {
 		default:
 		case Unknown:
-			System.out.println("T:Not a recognized key file format: " + keyFile + " (" + format + ")");
-			return false;
+			throw new IOException("Not a recognized key file format: " + keyFile + " (" + format + ")");
 		case OpenSSHv1:
 			kp = new OpenSSHKeyV1KeyFile();
 			((OpenSSHKeyV1KeyFile) kp).init(keyFile);
@@ -108,6 +108,5 @@ class SshUtil {
 		}
 		
 		ssh.authPublickey(username, kp);
-		return true;
 	}
 }
@@ -0,0 +1,152 @@
+package com.zwitserloot.ivyplusplus;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JarMergerTest {
+	@Rule public TemporaryFolder tmp = new TemporaryFolder();
+	
+	private static Task task() {
+		Task task = new Task() {};
+		task.setProject(new Project());
+		return task;
+	}
+	
+	private File jar(String name, String mainClass, String... entries) throws IOException {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
+		File f = tmp.newFile(name);
+		try (JarOutputStream out = new JarOutputStream(new FileOutputStream(f), manifest)) {
+			for (String entry : entries) {
+				out.putNextEntry(new ZipEntry(entry));
+				out.write((name + ":" + entry).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		return f;
+	}
+	
+	/** Signs {@code jar} in place with a throwaway key, using the JDK's own {@code keytool} and {@code jarsigner}. */
+	private void sign(File jar) throws IOException, InterruptedException {
+		File keystore = new File(tmp.getRoot(), "keystore.p12");
+		run(tool("keytool"), "-genkeypair", "-keyalg", "RSA", "-keysize", "2048", "-alias", "test", "-dname", "CN=test", "-validity", "1",
+			"-storetype", "PKCS12", "-keystore", keystore.getPath(), "-storepass", "password", "-keypass", "password");
+		run(tool("jarsigner"), "-keystore", keystore.getPath(), "-storetype", "PKCS12", "-storepass", "password", jar.getPath(), "test");
+	}
+	
+	private static String tool(String name) {
+		File home = new File(System.getProperty("java.home"));
+		// On java 8, java.home is the jre inside the jdk, which has no jarsigner.
+		for (File bin : new File[] {new File(home, "bin"), new File(home.getParentFile(), "bin")}) {
+			for (String exe : new String[] {name, name + ".exe"}) {
+				if (new File(bin, exe).isFile()) return new File(bin, exe).getPath();
+			}
+		}
+		assumeTrue(name + " not found in " + home, false);
+		return null;
+	}
+	
+	private static void run(String... cmd) throws IOException, InterruptedException {
+		Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+		String output = new String(readAll(p.getInputStream()), StandardCharsets.UTF_8);
+		assertEquals(output, 0, p.waitFor());
+	}
+	
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] b = new byte[4096];
+		for (int r = in.read(b); r != -1; r = in.read(b)) out.write(b, 0, r);
+		return out.toByteArray();
+	}
+	
+	private static String read(JarFile jar, String name) throws IOException {
+		ZipEntry entry = jar.getEntry(name);
+		assertNotNull(name + " is missing", entry);
+		try (InputStream in = jar.getInputStream(entry)) {
+			return new String(readAll(in), StandardCharsets.UTF_8);
+		}
+	}
+	
+	@Test public void failAllowsAManifestInEveryJar() throws IOException {
+		File a = jar("a.jar", "a.Main", "a/A.class");
+		File b = jar("b.jar", "b.Main", "b/B.class");
+		File out = new File(tmp.getRoot(), "out.jar");
+		
+		new JarMerger(task(), JarMerger.Duplicate.FAIL, null).merge(Arrays.asList(a, b), out);
+		
+		try (JarFile merged = new JarFile(out)) {
+			assertEquals("a.Main", merged.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS));
+			assertEquals("a.jar:a/A.class", read(merged, "a/A.class"));
+			assertEquals("b.jar:b/B.class", read(merged, "b/B.class"));
+		}
+	}
+	
+	@Test public void failStillRejectsOtherDuplicates() throws IOException {
+		File a = jar("a.jar", "a.Main", "x/X.class");
+		File b = jar("b.jar", "b.Main", "x/X.class");
+		File out = new File(tmp.getRoot(), "out.jar");
+		
+		try {
+			new JarMerger(task(), JarMerger.Duplicate.FAIL, null).merge(Arrays.asList(a, b), out);
+			fail("x/X.class is in both jars");
+		} catch (BuildException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().contains("x/X.class"));
+		}
+		assertFalse(out.exists());
+	}
+	
+	@Test public void overwriteTakesTheLastManifest() throws IOException {
+		File a = jar("a.jar", "a.Main", "a/A.class");
+		File b = jar("b.jar", "b.Main", "b/B.class");
+		File out = new File(tmp.getRoot(), "out.jar");
+		
+		new JarMerger(task(), JarMerger.Duplicate.OVERWRITE, null).merge(Arrays.asList(a, b), out);
+		
+		try (JarFile merged = new JarFile(out)) {
+			assertEquals("b.Main", merged.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS));
+		}
+	}
+	
+	@Test public void signatureFilesOfSignedJarsAreLeftOut() throws IOException, InterruptedException {
+		File a = jar("a.jar", "a.Main", "a/A.class");
+		File signed = jar("signed.jar", "s.Main", "s/S.class");
+		sign(signed);
+		try (JarFile check = new JarFile(signed)) {
+			assertNotNull("jarsigner didn't sign", check.getEntry("META-INF/TEST.SF"));
+		}
+		File out = new File(tmp.getRoot(), "out.jar");
+		
+		new JarMerger(task(), JarMerger.Duplicate.FAIL, null).merge(Arrays.asList(a, signed), out);
+		
+		// The manifest is a.jar's, so a signature that came along from signed.jar would no longer match it, and reading any entry would throw.
+		try (JarFile merged = new JarFile(out, true)) {
+			for (JarEntry entry : Collections.list(merged.entries())) {
+				assertFalse(entry.getName(), JarMerger.isSignatureFile(entry.getName()));
+				if (!entry.isDirectory()) readAll(merged.getInputStream(entry));
+			}
+			assertEquals("signed.jar:s/S.class", read(merged, "s/S.class"));
+		}
+	}
+}
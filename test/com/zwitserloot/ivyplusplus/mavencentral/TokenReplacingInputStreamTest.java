@@ -0,0 +1,115 @@
+package com.zwitserloot.ivyplusplus.mavencentral;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TokenReplacingInputStreamTest {
+	private static Map<String, String> tokens(String... pairs) {
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		for (int i = 0; i < pairs.length; i += 2) map.put(pairs[i], pairs[i + 1]);
+		return map;
+	}
+	
+	/** Hands out one byte per read, so that nothing the stream does can depend on how the underlying stream happens to chunk its data. */
+	private static InputStream trickle(String s) {
+		final byte[] data = s.getBytes(StandardCharsets.UTF_8);
+		return new InputStream() {
+			int pos;
+			
+			@Override public int read() {
+				return pos < data.length ? data[pos++] & 0xFF : -1;
+			}
+			
+			@Override public int read(byte[] b, int off, int len) {
+				if (len == 0) return 0;
+				int c = read();
+				if (c == -1) return -1;
+				b[off] = (byte) c;
+				return 1;
+			}
+		};
+	}
+	
+	/** Reads everything with {@code read(byte[], int, int)}, {@code bufferSize} bytes at a time; 0 to use {@code read()} instead. */
+	private static String replace(String in, Map<String, String> tokens, int bufferSize) throws IOException {
+		try (InputStream s = new TokenReplacingInputStream(trickle(in), tokens)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			if (bufferSize == 0) {
+				for (int c = s.read(); c != -1; c = s.read()) out.write(c);
+			} else {
+				// An offset into the buffer, to catch mixing up positions in the buffer with positions in the stream.
+				byte[] b = new byte[bufferSize + 2];
+				for (int r = s.read(b, 2, bufferSize); r != -1; r = s.read(b, 2, bufferSize)) {
+					assertTrue("read returned 0", r > 0);
+					out.write(b, 2, r);
+				}
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+	
+	private static String replace(String in, Map<String, String> tokens) throws IOException {
+		return replace(in, tokens, 0);
+	}
+	
+	@Test public void tokenAtEndOfStream() throws IOException {
+		Map<String, String> t = tokens("@VERSION@", "1.0");
+		assertEquals("<version>1.0", replace("<version>@VERSION@", t));
+		assertEquals("1.0", replace("@VERSION@", t));
+		assertEquals("1.01.0", replace("@VERSION@@VERSION@", t));
+	}
+	
+	@Test public void partialTokenAtEof() throws IOException {
+		Map<String, String> t = tokens("@VERSION@", "1.0");
+		assertEquals("<version>@VERS", replace("<version>@VERS", t));
+		assertEquals("@", replace("@", t));
+		assertEquals("1.0 @VERSION", replace("@VERSION@ @VERSION", t));
+	}
+	
+	@Test public void emptyStream() throws IOException {
+		assertEquals("", replace("", tokens("@VERSION@", "1.0")));
+		assertEquals("", replace("", tokens("@VERSION@", "1.0"), 4));
+	}
+	
+	@Test public void longestTokenWins() throws IOException {
+		Map<String, String> t = tokens("@V", "short", "@VERSION@", "long");
+		assertEquals("long short", replace("@VERSION@ @V", t));
+		// A partial long token at the end still leaves the short one to match.
+		assertEquals("shortERS", replace("@VERS", t));
+	}
+	
+	@Test public void overlappingTokens() throws IOException {
+		// Whichever token starts first wins; the bytes it used up can't be the start of another one.
+		assertEquals("Xd", replace("abcd", tokens("abc", "X", "bcd", "Y")));
+		assertEquals("aY", replace("abcd", tokens("abcx", "X", "bcd", "Y")));
+		// A failed match only skips one byte, so a token starting inside it is still found.
+		assertEquals("@1.0", replace("@@VERSION@", tokens("@VERSION@", "1.0")));
+	}
+	
+	@Test public void replacementsAreNotScannedAgain() throws IOException {
+		assertEquals("@A@@A@ x", replace("@A@ @B@", tokens("@A@", "@A@@A@", "@B@", "x")));
+	}
+	
+	@Test public void multiByteUtf8() throws IOException {
+		assertEquals("<name>Zwitserlöot ☃ 𝄞</name>", replace("<name>@NAME@</name>", tokens("@NAME@", "Zwitserlöot ☃ 𝄞")));
+		// Tokens are matched on their UTF-8 bytes, and a replacement isn't cut off even if it's longer than any token.
+		assertEquals("[é]", replace("[@ü@]", tokens("@ü@", "é")));
+		assertEquals("ü@", replace("ü@", tokens("@ü@", "é")));
+	}
+	
+	@Test public void readArrayAcrossTokenBoundaries() throws IOException {
+		Map<String, String> t = tokens("@VERSION@", "1.0.0-SNAPSHOT", "@GROUP@", "org.projectlombok", "@A@", "ä");
+		String in = "<g>@GROUP@</g><v>@VERSION@</v>@A@@A@<x>@VERS</x>@VERSION@";
+		String expected = "<g>org.projectlombok</g><v>1.0.0-SNAPSHOT</v>ää<x>@VERS</x>1.0.0-SNAPSHOT";
+		assertEquals(expected, replace(in, t));
+		for (int size = 1; size <= in.length() + 1; size++) assertEquals("buffer size " + size, expected, replace(in, t, size));
+	}
+}
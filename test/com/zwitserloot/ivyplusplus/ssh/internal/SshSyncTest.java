@@ -0,0 +1,153 @@
+package com.zwitserloot.ivyplusplus.ssh.internal;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.zwitserloot.ivyplusplus.ssh.internal.SftpUpload.Item;
+
+public class SshSyncTest {
+	@Rule public TemporaryFolder tmp = new TemporaryFolder();
+	
+	private static byte[] random(int size, long seed) {
+		byte[] b = new byte[size];
+		new Random(seed).nextBytes(b);
+		return b;
+	}
+	
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts) out.write(part, 0, part.length);
+		return out.toByteArray();
+	}
+	
+	private SshSync.Entry signatures(byte[] content) throws IOException {
+		File f = tmp.newFile();
+		Files.write(f.toPath(), content);
+		return SshSync.signatures(new Item(f, f.getName()), ByteBuffer.wrap(content));
+	}
+	
+	/**
+	 * Computes the delta from {@code oldContent} to {@code newContent}, checks that its ops cover the new file from start to end, in order, and
+	 * rebuilds the new file from them the way the server does: copies come out of the old file, the rest is what would be uploaded.
+	 * 
+	 * @return The ops, for the caller to check how much was reused.
+	 */
+	private List<SshSync.Op> roundTrip(byte[] oldContent, byte[] newContent) throws IOException {
+		List<SshSync.Op> ops = SshSync.delta(ByteBuffer.wrap(newContent), newContent.length, signatures(oldContent));
+		byte[] rebuilt = new byte[newContent.length];
+		long expectedOffset = 0;
+		for (SshSync.Op op : ops) {
+			assertEquals("ops must be contiguous", expectedOffset, op.newOffset);
+			assertTrue("empty op", op.length > 0);
+			if (op.oldOffset == -1) {
+				System.arraycopy(newContent, (int) op.newOffset, rebuilt, (int) op.newOffset, (int) op.length);
+			} else {
+				assertTrue("copy past the end of the old file", op.oldOffset + op.length <= oldContent.length);
+				System.arraycopy(oldContent, (int) op.oldOffset, rebuilt, (int) op.newOffset, (int) op.length);
+			}
+			expectedOffset += op.length;
+		}
+		assertEquals(newContent.length, expectedOffset);
+		assertArrayEquals(newContent, rebuilt);
+		return ops;
+	}
+	
+	private static long literal(List<SshSync.Op> ops) {
+		long total = 0;
+		for (SshSync.Op op : ops) if (op.oldOffset == -1) total += op.length;
+		return total;
+	}
+	
+	@Test public void identicalFileIsOneCopy() throws IOException {
+		byte[] content = random(100000, 1);
+		List<SshSync.Op> ops = roundTrip(content, content.clone());
+		// Adjacent block copies are merged; the shorter last block included.
+		assertEquals(1, ops.size());
+		assertEquals(0, ops.get(0).oldOffset);
+		assertEquals(content.length, ops.get(0).length);
+	}
+	
+	@Test public void insertion() throws IOException {
+		byte[] old = random(100000, 2);
+		byte[] inserted = concat(Arrays.copyOfRange(old, 0, 50001), random(300, 3), Arrays.copyOfRange(old, 50001, old.length));
+		List<SshSync.Op> ops = roundTrip(old, inserted);
+		// At most the inserted bytes plus the one block they landed in.
+		assertTrue("literal: " + literal(ops), literal(ops) <= 300 + signatures(old).blockSize);
+		
+		byte[] atStart = concat(random(10, 4), old);
+		assertTrue(literal(roundTrip(old, atStart)) <= 10 + signatures(old).blockSize);
+		byte[] atEnd = concat(old, random(10, 5));
+		assertTrue(literal(roundTrip(old, atEnd)) <= 10 + signatures(old).blockSize);
+	}
+	
+	@Test public void deletion() throws IOException {
+		byte[] old = random(100000, 6);
+		byte[] deleted = concat(Arrays.copyOfRange(old, 0, 30000), Arrays.copyOfRange(old, 35123, old.length));
+		List<SshSync.Op> ops = roundTrip(old, deleted);
+		assertTrue("literal: " + literal(ops), literal(ops) <= 2 * signatures(old).blockSize);
+		
+		roundTrip(old, Arrays.copyOfRange(old, 1, old.length));
+		roundTrip(old, Arrays.copyOfRange(old, 0, old.length - 1));
+	}
+	
+	@Test public void shorterTailBlockIsReusedAtTheEnd() throws IOException {
+		byte[] old = random(3 * 2048 + 100, 7);
+		SshSync.Entry entry = signatures(old);
+		assertEquals(2048, entry.blockSize);
+		assertEquals(4, entry.weak.length);
+		
+		// Only the first block changed; the last, short block still lines up with the end of the file.
+		byte[] changed = old.clone();
+		changed[10] ^= 1;
+		List<SshSync.Op> ops = roundTrip(old, changed);
+		SshSync.Op last = ops.get(ops.size() - 1);
+		assertNotEquals(-1, last.oldOffset);
+		assertEquals(old.length, last.oldOffset + last.length);
+		assertEquals(2048, literal(ops));
+		
+		// Elsewhere than at the end, the tail block can't match.
+		byte[] tailMoved = concat(Arrays.copyOfRange(old, 3 * 2048, old.length), random(5000, 8));
+		roundTrip(old, tailMoved);
+	}
+	
+	@Test public void fileSmallerThanOneBlock() throws IOException {
+		byte[] old = random(500, 9);
+		List<SshSync.Op> ops = roundTrip(old, old.clone());
+		assertEquals(0, literal(ops));
+		roundTrip(old, random(400, 10));
+		roundTrip(old, concat(random(7, 11), old));
+	}
+	
+	@Test public void emptyFiles() throws IOException {
+		byte[] content = random(10000, 12);
+		assertEquals(content.length, literal(roundTrip(new byte[0], content)));
+		assertTrue(roundTrip(content, new byte[0]).isEmpty());
+		assertTrue(roundTrip(new byte[0], new byte[0]).isEmpty());
+	}
+	
+	@Test public void unrelatedContent() throws IOException {
+		byte[] old = random(20000, 13);
+		byte[] other = random(30000, 14);
+		assertEquals(other.length, literal(roundTrip(old, other)));
+	}
+	
+	@Test public void repetitiveContent() throws IOException {
+		// Every block of the old file has the same checksums; any of them will do.
+		byte[] old = new byte[10000];
+		byte[] changed = new byte[12345];
+		changed[5000] = 1;
+		roundTrip(old, changed);
+	}
+}